@@ -0,0 +1,241 @@
+import org.opencv.core.Mat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.FileWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Processes many burst directories in one process.
+ *
+ * The manifest lists one burst directory per line (blank lines and lines starting with
+ * '#' are ignored). Jobs run on a fixed pool of job slots and share one alignment pool and
+ * one flow pool, so cascade classifiers, DIS instances and thread stacks are created once
+ * per worker thread rather than once per burst. Before a job starts it reserves its
+ * estimated working memory from a global budget, and a line of timing data is appended
+ * to the timings file once it finishes.
+ *
+ * Usage: BatchRunner manifest.txt [timings.jsonl] [method] [memoryBudgetMb] [parallelJobs] [flowScale] [dis] [tileMemoryMb] [features]
+ *
+ * dis configures the DIS engine of the raft method, see Raft.parse (e.g. "medium,patchSize=8").
+ * tileMemoryMb > 0 composites every burst tile by tile within that budget (default 0, whole frames).
+ * features is the alignment backend: brute_force (default), flann, orb or akaze.
+ */
+public class BatchRunner {
+
+    private static final double RESIZE_SCALE = 1.0 / 8;
+    // Used when the physical memory size is unavailable
+    private static final long DEFAULT_MEMORY_BUDGET_MB = 4096;
+
+    private final String method;
+    private final Raft raft;
+    private final double flowScale;
+    private final long memoryBudgetMb;
+    private final int parallelJobs;
+    private final long tileMemoryMb;
+    private final FeatureMatcher.Backend backend;
+
+    public BatchRunner(String method, long memoryBudgetMb, int parallelJobs) {
+        this(method, 1.0, memoryBudgetMb, parallelJobs);
+    }
+
+    // flowScale < 1 computes flow on downscaled frames, see ParallelFlowEngine.downscaled
+    public BatchRunner(String method, double flowScale, long memoryBudgetMb, int parallelJobs) {
+        this(method, Raft.defaultEngine(), flowScale, memoryBudgetMb, parallelJobs);
+    }
+
+    // raft configures the DIS workers of the "raft" method
+    public BatchRunner(String method, Raft raft, double flowScale, long memoryBudgetMb, int parallelJobs) {
+        this(method, raft, flowScale, memoryBudgetMb, parallelJobs, 0);
+    }
+
+    // tileMemoryMb > 0 composites tile by tile within that budget per tile; 0 processes whole frames
+    public BatchRunner(String method, Raft raft, double flowScale, long memoryBudgetMb, int parallelJobs,
+                       long tileMemoryMb) {
+        this(method, raft, flowScale, memoryBudgetMb, parallelJobs, tileMemoryMb, FeatureMatcher.Backend.DEFAULT);
+    }
+
+    // backend selects the features and matcher used for alignment
+    public BatchRunner(String method, Raft raft, double flowScale, long memoryBudgetMb, int parallelJobs,
+                       long tileMemoryMb, FeatureMatcher.Backend backend) {
+        this.method = method;
+        this.backend = backend;
+        this.raft = raft;
+        this.flowScale = flowScale;
+        this.memoryBudgetMb = Math.max(1, memoryBudgetMb);
+        this.parallelJobs = Math.max(1, parallelJobs);
+        this.tileMemoryMb = Math.max(0, tileMemoryMb);
+    }
+
+    public static void main(String[] args) {
+        String manifest = args[0];
+        String timings = args.length > 1 ? args[1] : "timings.jsonl";
+        String method = args.length > 2 ? args[2] : "raft";
+        long memoryBudgetMb = args.length > 3 ? Long.parseLong(args[3]) : defaultMemoryBudgetMb();
+        int parallelJobs = args.length > 4 ? Integer.parseInt(args[4]) : 2;
+        double flowScale = args.length > 5 ? Double.parseDouble(args[5]) : 1.0;
+        Raft raft = args.length > 6 ? Raft.parse(args[6]) : Raft.defaultEngine();
+        long tileMemoryMb = args.length > 7 ? Long.parseLong(args[7]) : 0;
+        FeatureMatcher.Backend backend = args.length > 8
+                ? FeatureMatcher.Backend.valueOf(args[8].toUpperCase(Locale.ROOT)) : FeatureMatcher.Backend.DEFAULT;
+
+        try {
+            new BatchRunner(method, raft, flowScale, memoryBudgetMb, parallelJobs, tileMemoryMb, backend)
+                    .run(readManifest(manifest), timings);
+        } finally {
+            if (raft != Raft.defaultEngine()) {
+                raft.close();
+            }
+        }
+    }
+
+    // Frames are native Mats, not Java heap, so the default budget is half the physical memory
+    public static long defaultMemoryBudgetMb() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            long physical = ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+            if (physical > 0) {
+                return physical / 2 / (1024 * 1024);
+            }
+        }
+        return DEFAULT_MEMORY_BUDGET_MB;
+    }
+
+    public static List<String> readManifest(String manifestPath) {
+        List<String> directories = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(manifestPath))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                directories.add(line.endsWith("/") ? line : line + "/");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading batch manifest: " + manifestPath, e);
+        }
+        return directories;
+    }
+
+    public void run(List<String> directories, String timingsPath) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        ExecutorService alignPool = Executors.newFixedThreadPool(cores);
+        ExecutorService flowPool = Executors.newFixedThreadPool(cores);
+        ExecutorService jobs = Executors.newFixedThreadPool(parallelJobs);
+        Semaphore memory = new Semaphore((int) Math.min(Integer.MAX_VALUE, memoryBudgetMb));
+
+        PipelineExecutor executor = new PipelineExecutor(method, raft, backend, flowScale, alignPool, flowPool, 2 * cores);
+        TileExecutor tiles = tileMemoryMb > 0 ? new TileExecutor(tileMemoryMb * 1024 * 1024) : null;
+        long batchStart = System.nanoTime();
+
+        try (PrintWriter timings = new PrintWriter(new FileWriter(timingsPath, true))) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (String directory : directories) {
+                futures.add(jobs.submit(() -> runJob(directory, executor, tiles, memory, timings)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing batch timings: " + timingsPath, e);
+        } catch (Exception e) {
+            throw new RuntimeException("Error in batch execution", e);
+        } finally {
+            jobs.shutdownNow();
+            alignPool.shutdownNow();
+            flowPool.shutdownNow();
+        }
+
+        double hours = (System.nanoTime() - batchStart) / 3.6e12;
+        System.out.println("Processed " + directories.size() + " bursts ("
+                + String.format(Locale.ROOT, "%.1f", directories.size() / Math.max(hours, 1e-9)) + " bursts/hour)");
+    }
+
+    private void runJob(String directory, PipelineExecutor executor, TileExecutor tiles, Semaphore memory,
+                        PrintWriter timings) {
+        long queuedAt = System.nanoTime();
+        int reservedMb = (int) Math.min(memoryBudgetMb, Math.max(1, estimateJobBytes(directory) / (1024 * 1024)));
+
+        String status = "ok";
+        int frames = 0;
+        long startedAt = queuedAt;
+        boolean acquired = false;
+        try {
+            memory.acquire(reservedMb);
+            acquired = true;
+            startedAt = System.nanoTime();
+            frames = ImageProcessor.pipelineConcurrent(directory, executor, new PipelineMetrics(), tiles);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = "interrupted";
+        } catch (RuntimeException e) {
+            status = "error: " + e.getMessage();
+        } finally {
+            if (acquired) {
+                memory.release(reservedMb);
+            }
+        }
+
+        long finishedAt = System.nanoTime();
+        synchronized (timings) {
+            timings.println(String.format(Locale.ROOT,
+                    "{\"directory\": \"%s\", \"frames\": %d, \"reservedMb\": %d, \"waitMs\": %.1f, \"runMs\": %.1f, \"status\": \"%s\"}",
+                    escape(directory), frames, reservedMb, (startedAt - queuedAt) / 1e6, (finishedAt - startedAt) / 1e6,
+                    escape(status)));
+            timings.flush();
+        }
+    }
+
+    // Working set of one job: the executor's window of frames, their grays and pending CV_32FC2 flows
+    // (it releases both once blurred), plus accumulators and remap buffers
+    private static long estimateJobBytes(String directory) {
+        List<File> files = FrameSource.listImageFiles(directory);
+        if (files.isEmpty()) {
+            return 0;
+        }
+        Mat first = FrameSource.decode(files.get(0), RESIZE_SCALE);
+        long pixels = first.total();
+        first.release();
+
+        long window = Math.min(files.size(), 2L * Runtime.getRuntime().availableProcessors());
+        long perPixel = window * (3 + 1) + window * 8 + 2 * 12 + 6 * 4;
+        return pixels * perPixel;
+    }
+
+    // JSON string contents: quotes, backslashes and control characters are escaped
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': escaped.append("\\\""); break;
+                case '\\': escaped.append("\\\\"); break;
+                case '\n': escaped.append("\\n"); break;
+                case '\r': escaped.append("\\r"); break;
+                case '\t': escaped.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        escaped.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                    } else {
+                        escaped.append(c);
+                    }
+            }
+        }
+        return escaped.toString();
+    }
+}
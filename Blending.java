@@ -0,0 +1,255 @@
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Blending kernels of the composite: alpha blending, Poisson blending and Laplacian pyramid
+ * blending of a source into a target under a mask (1 = source, 0 = target).
+ */
+public class Blending {
+
+    private static final int MAX_PYRAMID_DEPTH = 8;
+    private static final int MIN_PYRAMID_SIZE = 16;
+
+    // Tiled alphaBlending; the blend is per pixel, so tiles need no halo
+    public static Mat alphaBlendingTiled(Mat source, Mat mask, Mat target, TileExecutor executor) {
+        Mat blended = new Mat(source.size(), source.type());
+        long bytesPerPixel = 3 * source.elemSize() + 3 * 4;
+        executor.forEachTile(source.size(), bytesPerPixel, 0, (tile, padded) -> {
+            Mat blendedTile = blended.submat(tile);
+            alphaBlending(source.submat(tile), mask.submat(tile), target.submat(tile), blendedTile);
+            blendedTile.release();
+        });
+        return blended;
+    }
+
+    public static Mat alphaBlending(Mat source, Mat mask, Mat target) {
+        Mat blended = new Mat();
+        alphaBlending(source, mask, target, blended);
+        return blended;
+    }
+
+    /**
+     * out = mask * source + (1 - mask) * target, in one pass.
+     *
+     * source and target are CV_8U or CV_32F of the same type; out is (re)allocated to match
+     * unless it already does, so a submat of a larger image can be written in place. The
+     * mask is CV_32F in [0, 1] or CV_8U in [0, 255], with either one channel (applied to all
+     * channels) or as many channels as source.
+     */
+    public static void alphaBlending(Mat source, Mat mask, Mat target, Mat out) {
+        if (source.depth() != CvType.CV_8U && source.depth() != CvType.CV_32F) {
+            throw new RuntimeException("Alpha blending needs 8-bit or float images, got " + CvType.typeToString(source.type()));
+        }
+        if (mask.depth() != CvType.CV_8U && mask.depth() != CvType.CV_32F) {
+            throw new RuntimeException("Alpha blending needs an 8-bit or float mask, got " + CvType.typeToString(mask.type()));
+        }
+        double maskScale = mask.depth() == CvType.CV_8U ? 1.0 / 255 : 1.0;
+
+        if (mask.channels() == 1) {
+            // blendLinear computes (w1 * src1 + w2 * src2) / (w1 + w2) per pixel for every channel
+            MatPool pool = MatPool.local();
+            Mat weights = pool.borrow(mask.size(), CvType.CV_32F);
+            Mat inverseWeights = pool.borrow(mask.size(), CvType.CV_32F);
+            mask.convertTo(weights, CvType.CV_32F, maskScale);
+            mask.convertTo(inverseWeights, CvType.CV_32F, -maskScale, 1);
+            Imgproc.blendLinear(source, target, weights, inverseWeights, out);
+            pool.giveBack(weights);
+            pool.giveBack(inverseWeights);
+        } else if (mask.channels() == source.channels()) {
+            out.create(source.size(), source.type());
+            alphaBlendingPerChannel(source, mask, target, out, maskScale);
+        } else {
+            throw new RuntimeException("Mask must have 1 or " + source.channels() + " channels, got " + mask.channels());
+        }
+    }
+
+    // Row-by-row blend for masks with one weight per channel
+    private static void alphaBlendingPerChannel(Mat source, Mat mask, Mat target, Mat out, double maskScale) {
+        int width = source.cols() * source.channels();
+        float[] weights = new float[width];
+        byte[] maskBytes = mask.depth() == CvType.CV_8U ? new byte[width] : null;
+
+        if (source.depth() == CvType.CV_8U) {
+            byte[] src = new byte[width];
+            byte[] dst = new byte[width];
+            for (int y = 0; y < source.rows(); y++) {
+                readWeights(mask, y, weights, maskBytes, maskScale);
+                source.get(y, 0, src);
+                target.get(y, 0, dst);
+                for (int i = 0; i < width; i++) {
+                    float value = weights[i] * (src[i] & 0xFF) + (1 - weights[i]) * (dst[i] & 0xFF);
+                    src[i] = (byte) Math.min(255, Math.max(0, Math.round(value)));
+                }
+                out.put(y, 0, src);
+            }
+        } else {
+            float[] src = new float[width];
+            float[] dst = new float[width];
+            for (int y = 0; y < source.rows(); y++) {
+                readWeights(mask, y, weights, maskBytes, maskScale);
+                source.get(y, 0, src);
+                target.get(y, 0, dst);
+                for (int i = 0; i < width; i++) {
+                    src[i] = weights[i] * src[i] + (1 - weights[i]) * dst[i];
+                }
+                out.put(y, 0, src);
+            }
+        }
+    }
+
+    private static void readWeights(Mat mask, int y, float[] weights, byte[] maskBytes, double maskScale) {
+        if (maskBytes == null) {
+            mask.get(y, 0, weights);
+            return;
+        }
+        mask.get(y, 0, maskBytes);
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = (float) ((maskBytes[i] & 0xFF) * maskScale);
+        }
+    }
+
+    public static Mat poissonBlend(Mat source, Mat mask, Mat target) {
+        List<Mat> sourceChannels = new ArrayList<>();
+        List<Mat> targetChannels = new ArrayList<>();
+        Core.split(source, sourceChannels);
+        Core.split(target, targetChannels);
+
+        // The system only depends on the mask, so build it once for all channels
+        PoissonSolver solver = new PoissonSolver(mask);
+
+        List<Mat> blendedChannels = new ArrayList<>();
+        for (int c = 0; c < sourceChannels.size(); c++) {
+            blendedChannels.add(poissonBlendChannel(sourceChannels.get(c), targetChannels.get(c), solver, false));
+        }
+
+        Mat blended = new Mat();
+        Core.merge(blendedChannels, blended);
+
+        for (List<Mat> channels : Arrays.asList(sourceChannels, targetChannels, blendedChannels)) {
+            for (Mat channel : channels) {
+                channel.release();
+            }
+        }
+        return blended;
+    }
+
+    public static Mat poissonBlendChannel(Mat source, Mat target, PoissonSolver solver, boolean isAlpha) {
+        Mat x = solver.solve(source, target, isAlpha);
+
+        Mat channel = new Mat();
+        x.convertTo(channel, source.depth());
+        x.release();
+        return channel;
+    }
+
+    // Number of pyramid levels such that the coarsest level is still at least MIN_PYRAMID_SIZE on its short side
+    public static int pyramidDepth(Size size) {
+        int depth = 1;
+        double side = Math.min(size.width, size.height);
+        while (depth < MAX_PYRAMID_DEPTH && side / 2 >= MIN_PYRAMID_SIZE) {
+            side /= 2;
+            depth++;
+        }
+        return depth;
+    }
+
+    // Gaussian pyramid of depth levels; level 0 is img itself
+    public static List<Mat> buildGaussianPyramid(Mat img, int depth, MatPool.Arena arena) {
+        List<Mat> levels = new ArrayList<>();
+        levels.add(img);
+        for (int i = 1; i < depth; i++) {
+            Mat prev = levels.get(i - 1);
+            Mat down = arena.mat((prev.rows() + 1) / 2, (prev.cols() + 1) / 2, prev.type());
+            Imgproc.pyrDown(prev, down, down.size());
+            levels.add(down);
+        }
+        return levels;
+    }
+
+    // Laplacian pyramid: level i is G[i] - pyrUp(G[i + 1]), and the last level is the coarsest G
+    public static List<Mat> buildLaplacianPyramid(Mat img, int depth, MatPool.Arena arena) {
+        List<Mat> gaussian = buildGaussianPyramid(img, depth, arena);
+        List<Mat> levels = new ArrayList<>();
+        for (int i = 0; i < depth - 1; i++) {
+            Mat level = gaussian.get(i);
+            Mat detail = arena.mat(level.size(), level.type());
+            Imgproc.pyrUp(gaussian.get(i + 1), detail, level.size());
+            Core.subtract(level, detail, detail);
+            levels.add(detail);
+        }
+        levels.add(gaussian.get(depth - 1));
+        return levels;
+    }
+
+    // Collapses a Laplacian pyramid; the result is borrowed from arena
+    public static Mat reconstructLaplacianPyramid(List<Mat> Ls, MatPool.Arena arena) {
+        Mat image = Ls.get(Ls.size() - 1);
+        for (int i = Ls.size() - 2; i >= 0; i--) {
+            Mat level = Ls.get(i);
+            Mat upsampled = arena.mat(level.size(), level.type());
+            Imgproc.pyrUp(image, upsampled, level.size());
+            Core.add(upsampled, level, upsampled);
+            image = upsampled;
+        }
+        return image;
+    }
+
+    public static Mat laplacianPyramidBlend(Mat source, Mat mask, Mat target) {
+        return laplacianPyramidBlend(source, mask, target, pyramidDepth(source.size()));
+    }
+
+    /**
+     * Blends the Laplacian pyramids of source and target with the Gaussian pyramid of the
+     * mask (1 = source, 0 = target) and collapses the result, in the type of source.
+     *
+     * The three pyramids are built concurrently and the levels are blended in parallel.
+     * The mask may be CV_32F in [0, 1] or CV_8U in [0, 255], single-channel or with one
+     * channel per image channel.
+     */
+    public static Mat laplacianPyramidBlend(Mat source, Mat mask, Mat target, int depth) {
+        try (MatPool.Arena arena = MatPool.local().arena()) {
+            Mat sourceFloat = toFloat(source, 1.0, arena);
+            Mat targetFloat = toFloat(target, 1.0, arena);
+            Mat maskFloat = toFloat(mask, mask.depth() == CvType.CV_8U ? 1.0 / 255 : 1.0, arena);
+
+            CompletableFuture<List<Mat>> l1 = CompletableFuture.supplyAsync(() -> buildLaplacianPyramid(sourceFloat, depth, arena));
+            CompletableFuture<List<Mat>> l2 = CompletableFuture.supplyAsync(() -> buildLaplacianPyramid(targetFloat, depth, arena));
+            CompletableFuture<List<Mat>> gm = CompletableFuture.supplyAsync(() -> buildGaussianPyramid(maskFloat, depth, arena));
+
+            List<Mat> lOut = new ArrayList<>();
+            List<CompletableFuture<Void>> levels = new ArrayList<>();
+            for (int i = 0; i < depth; i++) {
+                int level = i;
+                Mat blended = arena.mat();
+                lOut.add(blended);
+                levels.add(CompletableFuture.allOf(l1, l2, gm).thenRunAsync(() ->
+                        alphaBlending(l1.join().get(level), gm.join().get(level), l2.join().get(level), blended)));
+            }
+            CompletableFuture.allOf(levels.toArray(new CompletableFuture[0])).join();
+
+            Mat result = new Mat();
+            reconstructLaplacianPyramid(lOut, arena).convertTo(result, source.type());
+            return result;
+        } catch (CompletionException e) {
+            throw new RuntimeException("Error in pyramid blending", e.getCause());
+        }
+    }
+
+    private static Mat toFloat(Mat img, double scale, MatPool.Arena arena) {
+        if (img.depth() == CvType.CV_32F && scale == 1.0) {
+            return img;
+        }
+        Mat converted = arena.mat(img.size(), CvType.makeType(CvType.CV_32F, img.channels()));
+        img.convertTo(converted, CvType.CV_32F, scale);
+        return converted;
+    }
+}
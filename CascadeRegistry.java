@@ -0,0 +1,50 @@
+import org.opencv.objdetect.CascadeClassifier;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out loaded Haar cascades.
+ *
+ * CascadeClassifier.detectMultiScale is not safe to call concurrently on one instance,
+ * so every thread gets its own instance of each cascade, parsed the first time that
+ * thread asks for it and reused afterwards. A missing or unreadable model fails
+ * immediately instead of producing an empty mask.
+ */
+public class CascadeRegistry {
+
+    public static final String FRONTAL_FACE = "haarcascade_frontalface_default.xml";
+    public static final String EYE = "haarcascade_eye.xml";
+
+    private static final ThreadLocal<Map<String, CascadeClassifier>> CLASSIFIERS =
+            ThreadLocal.withInitial(HashMap::new);
+
+    public static CascadeClassifier get(String path) {
+        Map<String, CascadeClassifier> classifiers = CLASSIFIERS.get();
+        CascadeClassifier classifier = classifiers.get(path);
+        if (classifier == null) {
+            classifier = load(path);
+            classifiers.put(path, classifier);
+        }
+        return classifier;
+    }
+
+    // Loads the given cascades on the calling thread, so a missing model fails before any work starts
+    public static void warmUp(String... paths) {
+        for (String path : paths) {
+            get(path);
+        }
+    }
+
+    private static CascadeClassifier load(String path) {
+        if (!new File(path).isFile()) {
+            throw new RuntimeException("Cascade model not found: " + path);
+        }
+        CascadeClassifier classifier = new CascadeClassifier(path);
+        if (classifier.empty()) {
+            throw new RuntimeException("Could not load cascade model: " + path);
+        }
+        return classifier;
+    }
+}
@@ -0,0 +1,63 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Running-mean long-exposure accumulator.
+ *
+ * Frames are summed into a single CV_32F buffer as they are produced, so memory does not
+ * depend on how many frames are averaged and 8-bit inputs never saturate.
+ */
+public class ExposureAccumulator {
+
+    private Mat sum;
+    private int outputType = -1;
+    private long count = 0;
+
+    public void add(Mat frame) {
+        if (sum == null) {
+            sum = Mat.zeros(frame.size(), CvType.CV_32FC(frame.channels()));
+            outputType = frame.type();
+        }
+        Imgproc.accumulate(frame, sum);
+        count++;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    // Average of all frames added so far, in the type of the first frame
+    public Mat mean() {
+        return mean(outputType);
+    }
+
+    public Mat mean(int type) {
+        Mat result = new Mat();
+        if (count == 0) {
+            return result;
+        }
+        sum.convertTo(result, type, 1.0 / count);
+        return result;
+    }
+
+    public void reset() {
+        if (sum != null) {
+            sum.setTo(new Scalar(0));
+        }
+        count = 0;
+    }
+
+    public void release() {
+        if (sum != null) {
+            sum.release();
+            sum = null;
+        }
+        count = 0;
+    }
+}
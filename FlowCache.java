@@ -0,0 +1,206 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed store for flow maps.
+ *
+ * A flow map is stored as {@code <key>.npy}, where the key hashes both frames of the pair
+ * together with the flow method and its parameters. The manifest lists every entry with
+ * its size in least-recently-used order, and entries are evicted oldest first once the
+ * cache grows past its byte budget. On load, files the manifest does not list are deleted.
+ * All methods that touch the entries are synchronized, since the flow paths share one cache
+ * across worker threads.
+ */
+public class FlowCache {
+
+    public static final long DEFAULT_MAX_BYTES = 2L * 1024 * 1024 * 1024;
+    private static final String MANIFEST = "manifest.tsv";
+
+    private final File dir;
+    private final long maxBytes;
+    // key -> size in bytes, in access order (eldest first)
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    public FlowCache(String directory, long maxBytes) {
+        this.dir = new File(directory);
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+        loadManifest();
+    }
+
+    // Hash of a frame's size, type and pixel data
+    public static String frameHash(Mat image) {
+        MessageDigest digest = sha256();
+        digest.update((image.rows() + "x" + image.cols() + ":" + image.type()).getBytes(StandardCharsets.UTF_8));
+
+        // Hash row by row through a single-channel view so no full-frame array is needed
+        Mat continuous = image.isContinuous() ? image : image.clone();
+        Mat rows = continuous.reshape(1, image.rows());
+        if (rows.depth() == CvType.CV_8U) {
+            byte[] row = new byte[rows.cols()];
+            for (int r = 0; r < rows.rows(); r++) {
+                rows.get(r, 0, row);
+                digest.update(row);
+            }
+        } else {
+            Mat doubles = new Mat();
+            rows.convertTo(doubles, CvType.CV_64F);
+            double[] row = new double[doubles.cols()];
+            ByteBuffer buffer = ByteBuffer.allocate(row.length * Double.BYTES);
+            for (int r = 0; r < doubles.rows(); r++) {
+                doubles.get(r, 0, row);
+                buffer.clear();
+                buffer.asDoubleBuffer().put(row);
+                digest.update(buffer.array());
+            }
+            doubles.release();
+        }
+        if (continuous != image) {
+            continuous.release();
+        }
+        return toHex(digest.digest());
+    }
+
+    public static String pairKey(String prevHash, String nextHash, String method, String params) {
+        MessageDigest digest = sha256();
+        digest.update((prevHash + "|" + nextHash + "|" + method + "|" + params).getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    // Cached flow map for key, or null on a miss
+    public synchronized Mat get(String key) {
+        if (!entries.containsKey(key)) {
+            return null;
+        }
+        File file = fileFor(key);
+        if (!file.exists()) {
+            remove(key);
+            return null;
+        }
+        entries.get(key);  // mark as recently used
+        return ImageUtils.loadNpyAsMat(file.getAbsolutePath());
+    }
+
+    public synchronized void put(String key, Mat flowMap) {
+        File file = fileFor(key);
+        ImageUtils.saveMatAsNpy(file.getAbsolutePath(), flowMap);
+
+        remove(key);
+        long size = file.length();
+        entries.put(key, size);
+        totalBytes += size;
+
+        evict();
+    }
+
+    // Writes the manifest, eldest entry first
+    public synchronized void save() {
+        File tmp = new File(dir, MANIFEST + ".tmp");
+        try (PrintWriter writer = new PrintWriter(tmp, "UTF-8")) {
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                writer.println(entry.getKey() + "\t" + entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing flow cache manifest: " + tmp, e);
+        }
+        try {
+            Files.move(tmp.toPath(), new File(dir, MANIFEST).toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing flow cache manifest: " + dir, e);
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && entries.size() > 1 && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            fileFor(eldest.getKey()).delete();
+            totalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private void remove(String key) {
+        Long size = entries.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+        }
+    }
+
+    private void loadManifest() {
+        File manifest = new File(dir, MANIFEST);
+        if (manifest.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length != 2) {
+                        continue;
+                    }
+                    // A size mismatch means the file was cut short or replaced
+                    long size = Long.parseLong(fields[1]);
+                    if (fileFor(fields[0]).length() != size) {
+                        continue;
+                    }
+                    entries.put(fields[0], size);
+                    totalBytes += size;
+                }
+            } catch (IOException | NumberFormatException e) {
+                // A broken manifest only costs recomputation
+                entries.clear();
+                totalBytes = 0;
+            }
+        }
+
+        // Files the manifest does not list were never saved or were dropped above
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(".npy") && !entries.containsKey(name.substring(0, name.length() - 4))) {
+                    file.delete();
+                }
+            }
+        }
+        new File(dir, MANIFEST + ".tmp").delete();
+
+        evict();
+    }
+
+    private File fileFor(String key) {
+        return new File(dir, key + ".npy");
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,69 @@
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Running per-pixel maximum of optical flow magnitude (the F map of the flow mask).
+ *
+ * Each flow map is folded in as it arrives: its two channels are extracted into reused
+ * buffers, Core.magnitude writes into a reused buffer and Core.max merges it into F. So F
+ * is complete as soon as the last flow is added, without another pass over all maps. All
+ * buffers are borrowed from the creating thread's MatPool and handed back by release().
+ */
+public class FlowMagnitudeAccumulator {
+
+    private final MatPool pool = MatPool.local();
+    private Mat flowX;
+    private Mat flowY;
+    private Mat magnitude;
+    private Mat F;
+    private long count = 0;
+
+    public void add(Mat flowMap) {
+        if (F == null) {
+            flowX = pool.borrow(flowMap.size(), CvType.CV_32F);
+            flowY = pool.borrow(flowMap.size(), CvType.CV_32F);
+            magnitude = pool.borrow(flowMap.size(), CvType.CV_32F);
+            F = pool.borrow(flowMap.size(), CvType.CV_32F);
+        }
+
+        Core.extractChannel(flowMap, flowX, 0);
+        Core.extractChannel(flowMap, flowY, 1);
+        if (count == 0) {
+            Core.magnitude(flowX, flowY, F);
+        } else {
+            Core.magnitude(flowX, flowY, magnitude);
+            Core.max(F, magnitude, F);
+        }
+        count++;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    // The running max so far (CV_32F), owned by the accumulator
+    public Mat F() {
+        return F;
+    }
+
+    // A copy of the running max that outlives the accumulator
+    public Mat result() {
+        Mat result = new Mat();
+        if (F != null) {
+            F.copyTo(result);
+        }
+        return result;
+    }
+
+    public void release() {
+        if (F != null) {
+            pool.giveBack(flowX);
+            pool.giveBack(flowY);
+            pool.giveBack(magnitude);
+            pool.giveBack(F);
+            flowX = flowY = magnitude = F = null;
+        }
+        count = 0;
+    }
+}
@@ -0,0 +1,165 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+/**
+ * The flow mask of the composite, MFlow = bilateral((F - alpha FRef) / (beta FRef - alpha FRef)).
+ *
+ * F is the per-pixel max flow magnitude over all flow maps and FRef its ROBUST_PERCENTILE,
+ * read off a histogram. alpha and beta place the ends of the ramp as fractions of FRef.
+ */
+public class FlowMask {
+
+    private static final int BILATERAL_DIAMETER = 15;
+    // FRef is this percentile of F rather than its maximum, so a few outlier vectors don't set it
+    private static final double ROBUST_PERCENTILE = 0.99;
+    private static final double HISTOGRAM_BINS_PER_PIXEL = 8;
+
+    private final double alpha;
+    private final double beta;
+
+    public FlowMask(double alpha, double beta) {
+        this.alpha = alpha;
+        this.beta = beta;
+    }
+
+    public Mat calcMFlow(Mat[] opticalFlows) {
+        // Pass 1: per-pixel max flow magnitude with Core.magnitude and Core.max on pooled buffers
+        FlowMagnitudeAccumulator magnitudes = new FlowMagnitudeAccumulator();
+        try {
+            for (Mat opticalFlow : opticalFlows) {
+                magnitudes.add(opticalFlow);
+            }
+
+            // Pass 2: FRef from calcHist, the remap and the bilateral filter
+            return calcMFlowFromF(magnitudes.F());
+        } finally {
+            magnitudes.release();
+        }
+    }
+
+    // calcMFlow from an F map that is already built, e.g. by a FlowMagnitudeAccumulator as the flows arrived
+    public Mat calcMFlowFromF(Mat F) {
+        MatPool pool = MatPool.local();
+        Mat mFlow = pool.borrow(F.size(), CvType.CV_32F);
+        try {
+            // (F - alphaFRef) / (betaFRef - alphaFRef) is one scale and shift, written into a
+            // pooled copy so F is left untouched
+            double[] ramp = flowRamp(robustMax(magnitudeHistogram(F), ROBUST_PERCENTILE));
+            F.convertTo(mFlow, CvType.CV_32F, ramp[0], ramp[1]);
+
+            Mat bilateral = new Mat();
+            Imgproc.bilateralFilter(mFlow, bilateral, BILATERAL_DIAMETER, 75, 75);
+            return bilateral;
+        } finally {
+            pool.giveBack(mFlow);
+        }
+    }
+
+    // Tiled calcMFlow: F is built tile by tile, then calcMFlowFromFTiled filters it, so
+    // temporaries stay within the executor's budget
+    public Mat calcMFlowTiled(Mat[] opticalFlows, TileExecutor executor) {
+        Size size = opticalFlows[0].size();
+        Mat F = new Mat(size, CvType.CV_32F);
+
+        // Pass 1: per-pixel F, one tile of every flow map at a time (two channels, magnitude, F)
+        executor.forEachTile(size, 4 * 4, 0, (tile, padded) -> {
+            FlowMagnitudeAccumulator magnitudes = new FlowMagnitudeAccumulator();
+            for (Mat opticalFlow : opticalFlows) {
+                Mat flowTile = opticalFlow.submat(tile);
+                magnitudes.add(flowTile);
+                flowTile.release();
+            }
+            Mat FTile = F.submat(tile);
+            magnitudes.F().copyTo(FTile);
+            FTile.release();
+            magnitudes.release();
+        });
+
+        Mat bilateral = calcMFlowFromFTiled(F, executor);
+        F.release();
+        return bilateral;
+    }
+
+    // Tiled calcMFlowFromF. FRef is a single value over the whole frame; the remap is per
+    // pixel, so it is applied to each padded tile right before the bilateral filter (d = 15).
+    public Mat calcMFlowFromFTiled(Mat F, TileExecutor executor) {
+        double[] ramp = flowRamp(robustMax(magnitudeHistogram(F), ROBUST_PERCENTILE));
+
+        int halo = BILATERAL_DIAMETER / 2;
+        Mat bilateral = new Mat(F.size(), CvType.CV_32F);
+        executor.forEachTile(F.size(), 3 * 4, halo, (tile, padded) -> {
+            Mat FPadded = F.submat(padded);
+            Mat mFlow = new Mat();
+            FPadded.convertTo(mFlow, CvType.CV_32F, ramp[0], ramp[1]);
+
+            Mat filtered = new Mat();
+            Imgproc.bilateralFilter(mFlow, filtered, BILATERAL_DIAMETER, 75, 75);
+            Mat bilateralTile = bilateral.submat(tile);
+            TileExecutor.inner(filtered, tile, padded).copyTo(bilateralTile);
+
+            bilateralTile.release();
+            filtered.release();
+            mFlow.release();
+            FPadded.release();
+        });
+        return bilateral;
+    }
+
+    // Bins cover magnitudes up to the frame diagonal; anything longer lands in the last bin
+    private static int[] newMagnitudeHistogram(Size size) {
+        double diagonal = Math.hypot(size.width, size.height);
+        return new int[(int) Math.ceil(diagonal * HISTOGRAM_BINS_PER_PIXEL) + 1];
+    }
+
+    // Upper edge of the bin holding the given percentile of the histogram
+    private static double robustMax(int[] histogram, double percentile) {
+        long total = 0;
+        for (int count : histogram) {
+            total += count;
+        }
+        long rank = (long) Math.ceil(percentile * total);
+        long cumulative = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            cumulative += histogram[i];
+            if (cumulative >= rank) {
+                return (i + 1) / HISTOGRAM_BINS_PER_PIXEL;
+            }
+        }
+        return histogram.length / HISTOGRAM_BINS_PER_PIXEL;
+    }
+
+    // Histogram of an F map, HISTOGRAM_BINS_PER_PIXEL bins per pixel of magnitude
+    private static int[] magnitudeHistogram(Mat F) {
+        int[] histogram = newMagnitudeHistogram(F.size());
+        Mat hist = new Mat();
+        Imgproc.calcHist(Arrays.asList(F), new MatOfInt(0), new Mat(), hist, new MatOfInt(histogram.length),
+                         new MatOfFloat(0f, (float) (histogram.length / HISTOGRAM_BINS_PER_PIXEL)));
+
+        float[] counts = new float[histogram.length];
+        hist.get(0, 0, counts);
+        hist.release();
+
+        // calcHist drops values beyond the range, which belong in the last bin
+        long counted = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = Math.round(counts[i]);
+            counted += histogram[i];
+        }
+        histogram[histogram.length - 1] += (int) (F.total() - counted);
+        return histogram;
+    }
+
+    // Scale and shift of (F - alphaFRef) / (betaFRef - alphaFRef)
+    private double[] flowRamp(double fRef) {
+        double alphaFRef = Math.max(fRef * alpha, 0);
+        double betaFRef = Math.min(fRef * beta, 1);
+        double scale = 1 / (betaFRef - alphaFRef);
+        return new double[]{scale, -alphaFRef * scale};
+    }
+}
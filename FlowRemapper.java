@@ -0,0 +1,81 @@
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Warps a frame along a fraction of its optical flow.
+ *
+ * The pixel meshgrid and the map buffers are allocated once per frame size and reused for
+ * every flow map and every t, so building the remap maps is two scaleAdd calls. All buffers
+ * are borrowed from the creating thread's MatPool and handed back by release().
+ */
+public class FlowRemapper {
+
+    private final Size size;
+    private final Mat gridX;
+    private final Mat gridY;
+    private final Mat mapX;
+    private final Mat mapY;
+    private final Mat flowX;
+    private final Mat flowY;
+    private final MatPool pool = MatPool.local();
+
+    public FlowRemapper(Size size) {
+        this(size, 0, 0);
+    }
+
+    // Grid starting at (offsetX, offsetY), for warping a tile out of a larger padded source
+    public FlowRemapper(Size size, int offsetX, int offsetY) {
+        this.size = size;
+        int h = (int) size.height;
+        int w = (int) size.width;
+
+        // Create mesh grid for pixel locations
+        float[] xs = new float[h * w];
+        float[] ys = new float[h * w];
+        for (int i = 0; i < h; i++) {
+            for (int j = 0; j < w; j++) {
+                xs[i * w + j] = j + offsetX;
+                ys[i * w + j] = i + offsetY;
+            }
+        }
+        gridX = pool.borrow(h, w, CvType.CV_32FC1);
+        gridY = pool.borrow(h, w, CvType.CV_32FC1);
+        gridX.put(0, 0, xs);
+        gridY.put(0, 0, ys);
+
+        mapX = pool.borrow(h, w, CvType.CV_32FC1);
+        mapY = pool.borrow(h, w, CvType.CV_32FC1);
+        flowX = pool.borrow(h, w, CvType.CV_32FC1);
+        flowY = pool.borrow(h, w, CvType.CV_32FC1);
+    }
+
+    public Size size() {
+        return size;
+    }
+
+    // Select the flow map used by the following warp calls
+    public void setFlow(Mat flowMap) {
+        // extractChannel writes into the existing buffers, unlike split
+        Core.extractChannel(flowMap, flowX, 0);
+        Core.extractChannel(flowMap, flowY, 1);
+    }
+
+    // dst = frame warped by t * flow
+    public void warp(Mat frame, float t, Mat dst) {
+        Core.scaleAdd(flowX, t, gridX, mapX);
+        Core.scaleAdd(flowY, t, gridY, mapY);
+        Imgproc.remap(frame, dst, mapX, mapY, Imgproc.INTER_LINEAR);
+    }
+
+    public void release() {
+        pool.giveBack(gridX);
+        pool.giveBack(gridY);
+        pool.giveBack(mapX);
+        pool.giveBack(mapY);
+        pool.giveBack(flowX);
+        pool.giveBack(flowY);
+    }
+}
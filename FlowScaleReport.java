@@ -0,0 +1,153 @@
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Supplier;
+
+/**
+ * Quality vs. speed of downscaled optical flow against full-resolution flow.
+ *
+ * For each scale, the flow of every pair is timed (the median of REPEATS runs after a
+ * discarded warm-up run, which absorbs OpenCL setup, JIT and DIS allocations, so the
+ * reference measured first is not penalized), compared with the full-resolution flow
+ * by average endpoint error (EPE, in full-resolution pixels), and used to render the long
+ * exposure, which is compared with the full-resolution render by PSNR.
+ *
+ * Usage: FlowScaleReport imageDirectory [method] [scale...]
+ */
+public class FlowScaleReport {
+
+    private static final double[] DEFAULT_SCALES = {1.0, 0.5, 0.25};
+    private static final int REPEATS = 5;
+
+    // Flow maps of one timed configuration and its median time per pair
+    private static class TimedFlow {
+        final List<Mat> flows;
+        final double msPerPair;
+
+        TimedFlow(List<Mat> flows, double msPerPair) {
+            this.flows = flows;
+            this.msPerPair = msPerPair;
+        }
+    }
+
+    public static void main(String[] args) {
+        String imageDirectory = args[0];
+        String method = args.length > 1 ? args[1] : "raft";
+        double[] scales = DEFAULT_SCALES;
+        if (args.length > 2) {
+            scales = new double[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                scales[i - 2] = Double.parseDouble(args[i]);
+            }
+        }
+
+        List<Mat> images;
+        try (FrameSource source = new FrameSource(imageDirectory, 1.0 / 8)) {
+            images = source.readAll();
+        }
+        if (images.size() < 2) {
+            throw new RuntimeException("Need at least two images in " + imageDirectory);
+        }
+
+        // Same working size as the pipeline, so DIS sees what it sees in production
+        Size workingSize = new Size(images.get(0).cols() - images.get(0).cols() % 8,
+                                    images.get(0).rows() - images.get(0).rows() % 8);
+        for (int i = 0; i < images.size(); i++) {
+            Mat resizedImg = new Mat();
+            Imgproc.resize(images.get(i), resizedImg, workingSize);
+            images.get(i).release();
+            images.set(i, resizedImg);
+        }
+        List<Mat> aligned = AlignImages.alignImages(images);
+
+        System.out.print(report(aligned, method, scales));
+    }
+
+    public static String report(List<Mat> images, String method, double[] scales) {
+        Supplier<ParallelFlowEngine.PairFlow> base = method.equalsIgnoreCase("raft")
+                ? Raft.disWorker() : ParallelFlowEngine.farneback();
+        int numPairs = images.size() - 1;
+
+        // Full-resolution reference, timed on a single worker like every scale below
+        TimedFlow timedReference = timeFlow(images, base);
+        List<Mat> reference = timedReference.flows;
+        double referenceMs = timedReference.msPerPair;
+        Mat referenceBlur = ImageProcessor.blurImages(images, reference);
+
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.ROOT, "%s flow, %d pairs at %dx%d, median of %d runs%n", method, numPairs,
+                                  images.get(0).cols(), images.get(0).rows(), REPEATS));
+        text.append(String.format(Locale.ROOT, "%8s %12s %9s %10s %12s%n", "scale", "ms/pair", "speedup", "EPE (px)", "PSNR (dB)"));
+        text.append(String.format(Locale.ROOT, "%8.3f %12.2f %9.2f %10.3f %12s%n", 1.0, referenceMs, 1.0, 0.0, "inf"));
+
+        for (double scale : scales) {
+            if (scale >= 1) {
+                continue;
+            }
+            TimedFlow timed = timeFlow(images, ParallelFlowEngine.downscaled(base, scale));
+            List<Mat> flows = timed.flows;
+            double ms = timed.msPerPair;
+
+            double epe = 0;
+            for (int i = 0; i < numPairs; i++) {
+                epe += endpointError(flows.get(i), reference.get(i)) / numPairs;
+            }
+            Mat blur = ImageProcessor.blurImages(images, flows);
+            double psnr = Core.PSNR(referenceBlur, blur);
+
+            text.append(String.format(Locale.ROOT, "%8.3f %12.2f %9.2f %10.3f %12.2f%n",
+                                      scale, ms, referenceMs / ms, epe, psnr));
+
+            blur.release();
+            releaseAll(flows);
+        }
+
+        referenceBlur.release();
+        releaseAll(reference);
+        return text.toString();
+    }
+
+    // One discarded warm-up run, then the median of REPEATS timed runs on a single worker;
+    // the flows of the last run are returned
+    private static TimedFlow timeFlow(List<Mat> images, Supplier<ParallelFlowEngine.PairFlow> workerFactory) {
+        int numPairs = images.size() - 1;
+        releaseAll(new ParallelFlowEngine(1).calculate(images, workerFactory));
+
+        double[] msPerPair = new double[REPEATS];
+        List<Mat> flows = new ArrayList<>();
+        for (int r = 0; r < REPEATS; r++) {
+            releaseAll(flows);
+            long start = System.nanoTime();
+            flows = new ParallelFlowEngine(1).calculate(images, workerFactory);
+            msPerPair[r] = (System.nanoTime() - start) / 1e6 / numPairs;
+        }
+        Arrays.sort(msPerPair);
+        return new TimedFlow(flows, msPerPair[REPEATS / 2]);
+    }
+
+    private static void releaseAll(List<Mat> mats) {
+        for (Mat mat : mats) {
+            mat.release();
+        }
+    }
+
+    // Mean length of the difference vectors between two flow maps
+    private static double endpointError(Mat flow, Mat reference) {
+        Mat difference = new Mat();
+        Core.subtract(flow, reference, difference);
+
+        FlowMagnitudeAccumulator magnitude = new FlowMagnitudeAccumulator();
+        magnitude.add(difference);
+        double epe = Core.mean(magnitude.F()).val[0];
+
+        magnitude.release();
+        difference.release();
+        return epe;
+    }
+}
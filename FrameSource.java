@@ -0,0 +1,183 @@
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Lazily decodes the frames of a burst directory in file name order.
+ *
+ * A background thread decodes ahead of the consumer into a bounded queue, so processing can
+ * start as soon as the first frame is ready and at most prefetch frames wait in memory.
+ * Downscaling by 1/2, 1/4 or 1/8 happens inside the JPEG decoder (IMREAD_REDUCED_COLOR_*),
+ * and only the remaining factor, if any, goes through Imgproc.resize.
+ */
+public class FrameSource implements Iterator<Mat>, AutoCloseable {
+
+    public static final int DEFAULT_PREFETCH = 4;
+
+    // Output and cache folders that live next to the frames
+    private static final Set<String> SKIPPED = new HashSet<>(Arrays.asList(
+            "aligned_images", "output", "flow_map", "output_initial", "output_initial2"));
+
+    private final BlockingQueue<Mat> queue;
+    private final Mat end = new Mat();  // marks the end of the stream
+    private final Thread decoder;
+    private volatile boolean closed = false;
+    private volatile RuntimeException failure;
+    private Mat next;
+    private boolean finished = false;
+
+    public FrameSource(String directory, double resizeScale) {
+        this(directory, resizeScale, DEFAULT_PREFETCH);
+    }
+
+    public FrameSource(String directory, double resizeScale, int prefetch) {
+        List<File> files = listImageFiles(directory);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, prefetch) + 1);
+        this.decoder = new Thread(() -> decodeAll(files, resizeScale), "frame-decoder");
+        this.decoder.setDaemon(true);
+        this.decoder.start();
+    }
+
+    public static List<File> listImageFiles(String directory) {
+        List<File> files = new ArrayList<>();
+        File dir = new File(directory);
+        if (!dir.exists() || !dir.isDirectory()) {
+            return files;
+        }
+
+        List<String> filenames = new ArrayList<>(Arrays.asList(dir.list()));
+        Collections.sort(filenames);
+        for (String filename : filenames) {
+            File file = new File(dir, filename);
+            if (file.isDirectory() || SKIPPED.contains(filename)) {
+                continue;
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    // Decodes one file, downscaled by resizeScale. Returns an empty Mat if it is not an image.
+    public static Mat decode(File file, double resizeScale) {
+        int flag = Imgcodecs.IMREAD_COLOR;
+        int reduction = 1;
+        if (resizeScale <= 1.0 / 8) {
+            flag = Imgcodecs.IMREAD_REDUCED_COLOR_8;
+            reduction = 8;
+        } else if (resizeScale <= 1.0 / 4) {
+            flag = Imgcodecs.IMREAD_REDUCED_COLOR_4;
+            reduction = 4;
+        } else if (resizeScale <= 1.0 / 2) {
+            flag = Imgcodecs.IMREAD_REDUCED_COLOR_2;
+            reduction = 2;
+        }
+
+        Mat img = Imgcodecs.imread(file.getAbsolutePath(), flag);
+        if (img.empty()) {
+            return img;
+        }
+
+        double remainingScale = resizeScale * reduction;
+        if (remainingScale != 1) {
+            Mat resizedImg = new Mat();
+            Imgproc.resize(img, resizedImg, new Size(img.cols() * remainingScale, img.rows() * remainingScale));
+            img.release();
+            img = resizedImg;
+        }
+        return img;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (finished) {
+            return false;
+        }
+        if (next == null) {
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the next frame", e);
+            }
+        }
+        if (next == end) {
+            finished = true;
+            next = null;
+            if (failure != null) {
+                throw failure;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Mat next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Mat frame = next;
+        next = null;
+        return frame;
+    }
+
+    // Drains the whole source into a list
+    public List<Mat> readAll() {
+        List<Mat> images = new ArrayList<>();
+        while (hasNext()) {
+            images.add(next());
+        }
+        return images;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        decoder.interrupt();
+        for (Mat frame : queue) {
+            if (frame != end) {
+                frame.release();
+            }
+        }
+        queue.clear();
+        finished = true;
+    }
+
+    private void decodeAll(List<File> files, double resizeScale) {
+        try {
+            for (File file : files) {
+                if (closed) {
+                    return;
+                }
+                Mat img = decode(file, resizeScale);
+                if (img.empty()) {
+                    continue;
+                }
+                queue.put(img);
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+
+        try {
+            queue.put(end);
+        } catch (InterruptedException e) {
+            // Closed while finishing; nobody is waiting
+        }
+    }
+}
@@ -1,20 +1,49 @@
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class ImageUtils {
 
+    private static final byte[] NPY_MAGIC = {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y'};
+    private static final Pattern NPY_DESCR = Pattern.compile("'descr':\\s*'([<>|=])([a-z])(\\d+)'");
+    private static final Pattern NPY_FORTRAN = Pattern.compile("'fortran_order':\\s*(True|False)");
+    private static final Pattern NPY_SHAPE = Pattern.compile("'shape':\\s*\\(([^)]*)\\)");
+
     // Load a .npy file into an OpenCV Mat
     public static Mat loadNpyAsMat(String filePath) {
-        try (DataInputStream dis = new DataInputStream(new FileInputStream(filePath))) {
-            int rows = dis.readInt();
-            int cols = dis.readInt();
-            int type = dis.readInt();
-
-            Mat mat = new Mat(rows, cols, type);
-            byte[] data = new byte[rows * cols * (int) mat.elemSize()];
-            dis.readFully(data);
-            mat.put(0, 0, data);
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            int rows;
+            int cols;
+            int type;
+            if (hasNpyMagic(buffer)) {
+                int[] shape = parseNpyHeader(buffer, filePath);
+                rows = shape[0];
+                cols = shape[1];
+                type = shape[2];
+            } else {
+                // Files written before the NumPy header was introduced: rows, cols, type as big-endian ints
+                buffer.order(ByteOrder.BIG_ENDIAN);
+                rows = buffer.getInt();
+                cols = buffer.getInt();
+                type = buffer.getInt();
+            }
+
+            // Wrap the mapped pixels as a Mat; the clone is the only copy and detaches the
+            // result from the mapping, which is unmapped once the buffer is collected
+            Mat view = new Mat(rows, cols, type, buffer.slice());
+            Mat mat = view.clone();
+            view.release();
             return mat;
         } catch (IOException e) {
             throw new RuntimeException("Error loading .npy file: " + filePath, e);
@@ -23,15 +52,118 @@ public class ImageUtils {
 
     // Save an OpenCV Mat as a .npy file
     public static void saveMatAsNpy(String filePath, Mat mat) {
-        try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(filePath))) {
-            dos.writeInt(mat.rows());
-            dos.writeInt(mat.cols());
-            dos.writeInt(mat.type());
-            byte[] data = new byte[(int) (mat.total() * mat.elemSize())];
-            mat.get(0, 0, data);
-            dos.write(data);
+        Mat src = mat.isContinuous() ? mat : mat.clone();
+        byte[] header = npyHeader(src);
+        long dataBytes = src.total() * src.elemSize();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, header.length + dataBytes);
+            buffer.put(header);
+
+            // Wrap the mapped data region as a Mat so OpenCV copies the pixels straight into the file
+            Mat view = new Mat(src.rows(), src.cols(), src.type(), buffer.slice());
+            src.copyTo(view);
+            view.release();
+            buffer.force();
         } catch (IOException e) {
             throw new RuntimeException("Error saving .npy file: " + filePath, e);
         }
     }
+
+    // NumPy format 1.0 header, padded so the data starts on a 64-byte boundary
+    private static byte[] npyHeader(Mat mat) {
+        String shape = mat.channels() == 1
+                ? "(" + mat.rows() + ", " + mat.cols() + ")"
+                : "(" + mat.rows() + ", " + mat.cols() + ", " + mat.channels() + ")";
+        StringBuilder dict = new StringBuilder("{'descr': '" + npyDescr(mat.depth())
+                + "', 'fortran_order': False, 'shape': " + shape + ", }");
+
+        int preamble = NPY_MAGIC.length + 4;
+        while ((preamble + dict.length() + 1) % 64 != 0) {
+            dict.append(' ');
+        }
+        dict.append('\n');
+
+        byte[] dictBytes = dict.toString().getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer header = ByteBuffer.allocate(preamble + dictBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(NPY_MAGIC);
+        header.put((byte) 1).put((byte) 0);
+        header.putShort((short) dictBytes.length);
+        header.put(dictBytes);
+        return header.array();
+    }
+
+    private static boolean hasNpyMagic(ByteBuffer buffer) {
+        if (buffer.remaining() < NPY_MAGIC.length + 4) {
+            return false;
+        }
+        for (int i = 0; i < NPY_MAGIC.length; i++) {
+            if (buffer.get(i) != NPY_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Reads the header and leaves the buffer positioned at the data. Returns {rows, cols, type}.
+    private static int[] parseNpyHeader(ByteBuffer buffer, String filePath) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int major = buffer.get(NPY_MAGIC.length);
+        int headerLength;
+        int dataOffset;
+        if (major == 1) {
+            headerLength = buffer.getShort(NPY_MAGIC.length + 2) & 0xFFFF;
+            dataOffset = NPY_MAGIC.length + 4 + headerLength;
+        } else {
+            headerLength = buffer.getInt(NPY_MAGIC.length + 2);
+            dataOffset = NPY_MAGIC.length + 6 + headerLength;
+        }
+
+        byte[] dictBytes = new byte[headerLength];
+        buffer.position(dataOffset - headerLength);
+        buffer.get(dictBytes);
+        String dict = new String(dictBytes, StandardCharsets.US_ASCII);
+
+        Matcher descr = NPY_DESCR.matcher(dict);
+        Matcher fortran = NPY_FORTRAN.matcher(dict);
+        Matcher shape = NPY_SHAPE.matcher(dict);
+        if (!descr.find() || !shape.find() || (fortran.find() && fortran.group(1).equals("True"))
+                || descr.group(1).equals(">")) {
+            throw new RuntimeException("Unsupported .npy header in " + filePath + ": " + dict.trim());
+        }
+
+        String[] dims = shape.group(1).split(",");
+        int rows = dims.length > 0 && !dims[0].trim().isEmpty() ? Integer.parseInt(dims[0].trim()) : 1;
+        int cols = dims.length > 1 && !dims[1].trim().isEmpty() ? Integer.parseInt(dims[1].trim()) : 1;
+        int channels = dims.length > 2 && !dims[2].trim().isEmpty() ? Integer.parseInt(dims[2].trim()) : 1;
+        int depth = cvDepth(descr.group(2).charAt(0), Integer.parseInt(descr.group(3)), filePath);
+
+        buffer.position(dataOffset);
+        return new int[]{rows, cols, CvType.makeType(depth, channels)};
+    }
+
+    private static String npyDescr(int depth) {
+        switch (depth) {
+            case CvType.CV_8U: return "|u1";
+            case CvType.CV_8S: return "|i1";
+            case CvType.CV_16U: return "<u2";
+            case CvType.CV_16S: return "<i2";
+            case CvType.CV_32S: return "<i4";
+            case CvType.CV_32F: return "<f4";
+            case CvType.CV_64F: return "<f8";
+            default: throw new RuntimeException("Unsupported Mat depth for .npy: " + depth);
+        }
+    }
+
+    private static int cvDepth(char kind, int bytes, String filePath) {
+        if (kind == 'u' && bytes == 1) return CvType.CV_8U;
+        if (kind == 'i' && bytes == 1) return CvType.CV_8S;
+        if (kind == 'u' && bytes == 2) return CvType.CV_16U;
+        if (kind == 'i' && bytes == 2) return CvType.CV_16S;
+        if (kind == 'i' && bytes == 4) return CvType.CV_32S;
+        if (kind == 'f' && bytes == 4) return CvType.CV_32F;
+        if (kind == 'f' && bytes == 8) return CvType.CV_64F;
+        throw new RuntimeException("Unsupported .npy dtype in " + filePath + ": " + kind + bytes);
+    }
 }
@@ -1,11 +1,20 @@
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.Button;
+import android.widget.ImageView;
 import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import org.opencv.android.OpenCVLoader;
+import org.opencv.android.Utils;
 import org.opencv.core.Mat;
-import java.util.List;
+import org.opencv.imgproc.Imgproc;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -32,21 +41,23 @@ public class MainActivity extends AppCompatActivity {
     private void runPipeline() {
         new Thread(() -> {
             try {
-                String imageDirectory = "examples"; // No "assets/" prefix needed
-                String flowmapDirectory = imageDirectory + "/flow_map/";
-                String alignedImagesDirectory = imageDirectory + "/aligned_images/";
-                String outputDirectory = imageDirectory + "/output/";
+                boolean ROLLING = true; // Change as needed; false runs the batch pipeline
+                String method = "raft";
 
-                // Load images from assets
-                List<Mat> images = ImageUtils.readImages(getApplicationContext(), imageDirectory, 1.0 / 8);
+                // FrameSource and the pipeline read from the file system, so the bundled burst
+                // is copied out of the assets first
+                String imageDirectory = copyAssets("examples", new File(getFilesDir(), "examples")) + "/";
 
-                if (images.isEmpty()) {
+                if (FrameSource.listImageFiles(imageDirectory).isEmpty()) {
                     runOnUiThread(() -> Toast.makeText(getApplicationContext(), "No images found!", Toast.LENGTH_LONG).show());
                     return;
                 }
 
-                // Run the pipeline function
-                ImageProcessor.pipeline(images, flowmapDirectory, alignedImagesDirectory, outputDirectory);
+                if (ROLLING) {
+                    runRolling(imageDirectory, method);
+                } else {
+                    ImageProcessor.pipeline(imageDirectory);
+                }
 
                 runOnUiThread(() -> Toast.makeText(getApplicationContext(), "Pipeline execution completed!", Toast.LENGTH_LONG).show());
             } catch (Exception e) {
@@ -55,4 +66,50 @@ public class MainActivity extends AppCompatActivity {
             }
         }).start();
     }
+
+    // Feeds the frames to a rolling exposure one at a time, as they would arrive from the camera,
+    // and shows the long exposure so far after every frame
+    private void runRolling(String imageDirectory, String method) {
+        ImageView preview = findViewById(R.id.previewImage);
+        RollingLongExposure exposure = RollingLongExposure.forMethod(method);
+        try (FrameSource source = new FrameSource(imageDirectory, 1.0 / 8)) {
+            while (source.hasNext()) {
+                Mat frame = source.next();
+                Mat blurred = exposure.addFrame(frame);
+                frame.release();
+
+                Mat rgba = new Mat();
+                Imgproc.cvtColor(blurred, rgba, Imgproc.COLOR_BGR2RGBA);
+                Bitmap bitmap = Bitmap.createBitmap(rgba.cols(), rgba.rows(), Bitmap.Config.ARGB_8888);
+                Utils.matToBitmap(rgba, bitmap);
+                rgba.release();
+                blurred.release();
+
+                runOnUiThread(() -> preview.setImageBitmap(bitmap));
+            }
+        } finally {
+            exposure.release();
+        }
+    }
+
+    // Copies the files of an asset folder to target, skipping subfolders and files already there
+    private String copyAssets(String assetDirectory, File target) throws IOException {
+        AssetManager assets = getAssets();
+        target.mkdirs();
+        for (String name : assets.list(assetDirectory)) {
+            File file = new File(target, name);
+            if (file.exists() || assets.list(assetDirectory + "/" + name).length > 0) {
+                continue;
+            }
+            try (InputStream in = assets.open(assetDirectory + "/" + name);
+                 OutputStream out = new FileOutputStream(file)) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+        }
+        return target.getAbsolutePath();
+    }
 }
@@ -0,0 +1,173 @@
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pool of native Mat buffers, keyed by rows, cols and type.
+ *
+ * Temporaries in the hot paths are borrowed from an arena and handed back when the arena
+ * closes, so their native memory is reused by the next call instead of waiting for the
+ * GC to finalize the Java wrappers:
+ *
+ * <pre>
+ *   try (MatPool.Arena arena = MatPool.local().arena()) {
+ *       Mat tmp = arena.mat(size, CvType.CV_32F);  // preallocated, contents undefined
+ *       Mat out = arena.mat();                     // sized by the OpenCV call writing it
+ *       ...
+ *       return arena.keep(result);                 // outlives the arena
+ *   }
+ * </pre>
+ *
+ * Every thread has its own pool, so borrowing is uncontended. Buffers beyond
+ * maxPooledBytes are released rather than pooled, which bounds what a pool holds. A pool
+ * only ever pools or releases Mats it allocated itself, so a caller's Mat (or a view of
+ * one) that reaches giveBack is left alone rather than handed out as a scratch buffer.
+ */
+public class MatPool {
+
+    public static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+    private static final ThreadLocal<MatPool> LOCAL = ThreadLocal.withInitial(MatPool::new);
+
+    private final long maxPooledBytes;
+    private final Map<Long, ArrayDeque<Mat>> free = new HashMap<>();
+    // nativeObj of every Mat this pool allocated and has not released or disowned
+    private final Set<Long> owned = new HashSet<>();
+    private long pooledBytes = 0;
+
+    public MatPool() {
+        this(DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    public MatPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    // The calling thread's pool
+    public static MatPool local() {
+        return LOCAL.get();
+    }
+
+    public Arena arena() {
+        return new Arena();
+    }
+
+    public Mat borrow(Size size, int type) {
+        return borrow((int) size.height, (int) size.width, type);
+    }
+
+    // A rows x cols buffer of the given type; its contents are undefined
+    public synchronized Mat borrow(int rows, int cols, int type) {
+        ArrayDeque<Mat> buffers = free.get(key(rows, cols, type));
+        if (buffers != null && !buffers.isEmpty()) {
+            Mat mat = buffers.pop();
+            pooledBytes -= bytes(mat);
+            return mat;
+        }
+        return allocate(new Mat(rows, cols, type));
+    }
+
+    // Hands a buffer back for reuse. Mats the pool did not allocate are ignored; empty
+    // Mats, submatrices and buffers over the byte cap are released instead.
+    public synchronized void giveBack(Mat mat) {
+        if (!owned.contains(mat.nativeObj)) {
+            return;
+        }
+        if (mat.empty() || mat.isSubmatrix() || !mat.isContinuous() || pooledBytes + bytes(mat) > maxPooledBytes) {
+            owned.remove(mat.nativeObj);
+            mat.release();
+            return;
+        }
+        free.computeIfAbsent(key(mat.rows(), mat.cols(), mat.type()), k -> new ArrayDeque<>()).push(mat);
+        pooledBytes += bytes(mat);
+    }
+
+    public synchronized long pooledBytes() {
+        return pooledBytes;
+    }
+
+    // Releases every pooled buffer
+    public synchronized void clear() {
+        for (ArrayDeque<Mat> buffers : free.values()) {
+            for (Mat mat : buffers) {
+                owned.remove(mat.nativeObj);
+                mat.release();
+            }
+        }
+        free.clear();
+        pooledBytes = 0;
+    }
+
+    private synchronized Mat allocate(Mat mat) {
+        owned.add(mat.nativeObj);
+        return mat;
+    }
+
+    // Stops tracking mat, which then belongs to the caller and is never pooled
+    private synchronized Mat disown(Mat mat) {
+        owned.remove(mat.nativeObj);
+        return mat;
+    }
+
+    private static long key(int rows, int cols, int type) {
+        return ((long) rows << 40) | ((long) cols << 16) | type;
+    }
+
+    private static long bytes(Mat mat) {
+        return mat.total() * mat.elemSize();
+    }
+
+    /**
+     * Scope of borrowed buffers. Everything obtained through mat() goes back to the pool on
+     * close unless it was passed to keep(). Tasks forked inside the scope may share it.
+     * Views of caller Mats must not be tracked; release them explicitly instead.
+     */
+    public class Arena implements AutoCloseable {
+        private final List<Mat> borrowed = new ArrayList<>();
+
+        public Mat mat(Size size, int type) {
+            return track(borrow(size, type));
+        }
+
+        public Mat mat(int rows, int cols, int type) {
+            return track(borrow(rows, cols, type));
+        }
+
+        // An empty Mat for outputs sized by OpenCV; its buffer is pooled on close
+        public Mat mat() {
+            return track(allocate(new Mat()));
+        }
+
+        // Adds a Mat this pool allocated to this scope; anything else is rejected
+        public synchronized Mat track(Mat mat) {
+            synchronized (MatPool.this) {
+                if (!owned.contains(mat.nativeObj)) {
+                    throw new IllegalArgumentException("Arena can only track Mats allocated by its pool");
+                }
+            }
+            borrowed.add(mat);
+            return mat;
+        }
+
+        // Removes mat from this scope and from the pool so it survives close
+        public synchronized Mat keep(Mat mat) {
+            borrowed.remove(mat);
+            return disown(mat);
+        }
+
+        @Override
+        public synchronized void close() {
+            for (Mat mat : borrowed) {
+                giveBack(mat);
+            }
+            borrowed.clear();
+        }
+    }
+}
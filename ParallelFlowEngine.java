@@ -0,0 +1,195 @@
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.Video;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Computes pair-wise optical flow maps on a bounded worker pool.
+ *
+ * The pairs are split into contiguous runs, one per worker. Each worker owns its flow
+ * instance and two grayscale buffers, so inside a run every frame is converted to gray
+ * only once. Results are returned in pair order.
+ */
+public class ParallelFlowEngine {
+
+    // Flow between two 8-bit grayscale frames. Instances are only used by one worker.
+    public interface PairFlow {
+        void calc(Mat prevGray, Mat nextGray, Mat flow);
+    }
+
+    // Identifies the Farneback parameters in flow cache keys
+    public static final String FARNEBACK_PARAMS = "farneback 0.5 5 11 5 5 1.1 0";
+
+    private final int numThreads;
+    private final ExecutorService executor;  // null: a pool is created for each calculate call
+
+    public ParallelFlowEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelFlowEngine(int numThreads) {
+        this(numThreads, null);
+    }
+
+    // Runs on a long-lived pool owned by the caller, so per-thread workers can outlive one call
+    public ParallelFlowEngine(int numThreads, ExecutorService executor) {
+        this.numThreads = Math.max(1, numThreads);
+        this.executor = executor;
+    }
+
+    public static Supplier<PairFlow> farneback() {
+        return () -> (prevGray, nextGray, flow) ->
+                Video.calcOpticalFlowFarneback(prevGray, nextGray, flow, 0.5, 5, 11, 5, 5, 1.1, 0);
+    }
+
+    /**
+     * Flow computed on frames downscaled by scale (e.g. 0.5 or 0.25) and upsampled back to the
+     * input size. Each vector component is multiplied by the matching size ratio, so the result
+     * is in full-resolution pixels. Flow fields are smooth, so this loses little accuracy while
+     * the flow itself runs on 1 / scale^2 fewer pixels. Each worker keeps its own small buffers.
+     */
+    public static Supplier<PairFlow> downscaled(Supplier<PairFlow> workerFactory, double scale) {
+        if (scale >= 1) {
+            return workerFactory;
+        }
+        return () -> new DownscaledFlow(workerFactory.get(), scale);
+    }
+
+    private static class DownscaledFlow implements PairFlow {
+        private final PairFlow worker;
+        private final double scale;
+        private Mat smallPrev = new Mat();
+        private Mat smallNext = new Mat();
+        private final Mat smallFlow = new Mat();
+        private Mat lastNextGray;  // full-size frame currently held in smallNext
+
+        DownscaledFlow(PairFlow worker, double scale) {
+            this.worker = worker;
+            this.scale = scale;
+        }
+
+        @Override
+        public void calc(Mat prevGray, Mat nextGray, Mat flow) {
+            Size smallSize = new Size(Math.max(1, Math.round(prevGray.cols() * scale)),
+                                      Math.max(1, Math.round(prevGray.rows() * scale)));
+
+            // On consecutive pairs the previous next frame is already downscaled; swapping the
+            // buffers also lets the worker recognise the pair as consecutive
+            if (prevGray == lastNextGray && smallNext.size().equals(smallSize)) {
+                Mat tmp = smallPrev;
+                smallPrev = smallNext;
+                smallNext = tmp;
+            } else {
+                Imgproc.resize(prevGray, smallPrev, smallSize, 0, 0, Imgproc.INTER_AREA);
+            }
+            Imgproc.resize(nextGray, smallNext, smallSize, 0, 0, Imgproc.INTER_AREA);
+            lastNextGray = nextGray;
+
+            worker.calc(smallPrev, smallNext, smallFlow);
+
+            Imgproc.resize(smallFlow, flow, prevGray.size(), 0, 0, Imgproc.INTER_LINEAR);
+            Core.multiply(flow, new Scalar(prevGray.cols() / smallSize.width, prevGray.rows() / smallSize.height), flow);
+        }
+    }
+
+    // Flow cache parameters of a flow computed at scale
+    public static String downscaledParams(String params, double scale) {
+        return scale >= 1 ? params : params + " scale=" + scale;
+    }
+
+    public List<Mat> calculate(List<Mat> images, Supplier<PairFlow> workerFactory) {
+        List<Integer> pairs = new ArrayList<>();
+        for (int i = 0; i < images.size() - 1; i++) {
+            pairs.add(i);
+        }
+        return calculate(images, pairs, workerFactory);
+    }
+
+    // Flow for each pair (images[p], images[p + 1]), returned in the order of pairs
+    public List<Mat> calculate(List<Mat> images, List<Integer> pairs, Supplier<PairFlow> workerFactory) {
+        Mat[] flowMaps = new Mat[pairs.size()];
+        if (pairs.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        int numWorkers = Math.min(numThreads, pairs.size());
+        int chunkSize = (pairs.size() + numWorkers - 1) / numWorkers;
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int start = 0; start < pairs.size(); start += chunkSize) {
+            int from = start;
+            int to = Math.min(pairs.size(), start + chunkSize);
+            tasks.add(() -> {
+                runChunk(images, pairs, from, to, workerFactory.get(), flowMaps);
+                return null;
+            });
+        }
+
+        ExecutorService pool = executor != null ? executor : Executors.newFixedThreadPool(numWorkers);
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Optical flow calculation interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error calculating optical flow", e.getCause());
+        } finally {
+            if (pool != executor) {
+                pool.shutdownNow();
+            }
+        }
+
+        return new ArrayList<>(Arrays.asList(flowMaps));
+    }
+
+    private static void runChunk(List<Mat> images, List<Integer> pairs, int from, int to,
+                                 PairFlow worker, Mat[] flowMaps) {
+        Mat prevGray = new Mat();
+        Mat nextGray = new Mat();
+        int grayFrame = -1;  // frame currently held in nextGray
+
+        for (int k = from; k < to; k++) {
+            int pair = pairs.get(k);
+
+            // Reuse the gray of the previous pair's second frame when the pairs are consecutive
+            if (grayFrame == pair) {
+                Mat tmp = prevGray;
+                prevGray = nextGray;
+                nextGray = tmp;
+            } else {
+                toGray(images.get(pair), prevGray);
+            }
+            toGray(images.get(pair + 1), nextGray);
+            grayFrame = pair + 1;
+
+            Mat flow = new Mat();
+            worker.calc(prevGray, nextGray, flow);
+            flowMaps[k] = flow;
+        }
+
+        prevGray.release();
+        nextGray.release();
+    }
+
+    public static void toGray(Mat image, Mat gray) {
+        if (image.channels() == 1) {
+            image.copyTo(gray);
+        } else {
+            Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGR2GRAY);
+        }
+    }
+}
@@ -1,63 +1,97 @@
 import org.opencv.core.*;
 import org.opencv.imgcodecs.Imgcodecs;
-import org.opencv.imgproc.Imgproc;
-import org.opencv.video.Video;
 
-import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class ImageProcessor {
 
     public static List<Mat> calculateOpticalFlow(List<Mat> images, String method, boolean fromCache, String flowmapDir) {
-        if (flowmapDir != null) {
-            flowmapDir = flowmapDir + "/" + method;
-            new File(flowmapDir).mkdirs();
-        }
+        return calculateOpticalFlow(images, method, fromCache, flowmapDir, 1.0);
+    }
 
-        List<Mat> flowMaps = new ArrayList<>();
+    // flowScale < 1 computes flow on downscaled frames, see ParallelFlowEngine.downscaled
+    public static List<Mat> calculateOpticalFlow(List<Mat> images, String method, boolean fromCache, String flowmapDir,
+                                                 double flowScale) {
+        return calculateOpticalFlow(images, method, fromCache, flowmapDir, flowScale, Raft.defaultEngine());
+    }
 
-        // Load from cache if available
-        if (fromCache && flowmapDir != null && new File(flowmapDir).exists()) {
-            File[] files = new File(flowmapDir).listFiles((dir, name) -> name.endsWith(".npy"));
-            if (files != null && files.length > 0) {
-                for (File file : files) {
-                    Mat flowmap = ImageUtils.loadNpyAsMat(file.getAbsolutePath());
-                    flowMaps.add(flowmap);
-                }
-                return flowMaps;
+    // raft is the DIS engine used by the "raft" method; its params() are part of the cache key
+    public static List<Mat> calculateOpticalFlow(List<Mat> images, String method, boolean fromCache, String flowmapDir,
+                                                 double flowScale, Raft raft) {
+        String params;
+        if (method.equalsIgnoreCase("cv2")) {
+            // Pair-wise optical flow maps using Farneback method
+            params = ParallelFlowEngine.FARNEBACK_PARAMS;
+        } else if (method.equalsIgnoreCase("raft")) {
+            // Pair-wise optical flow maps using RAFT (DIS Optical Flow in Java)
+            params = raft.params();
+        } else {
+            return new ArrayList<>();
+        }
+        params = ParallelFlowEngine.downscaledParams(params, flowScale);
+
+        int numPairs = Math.max(0, images.size() - 1);
+        Mat[] flowMaps = new Mat[numPairs];
+
+        // Cache entries are keyed on the content of both frames plus the method and its parameters
+        FlowCache cache = null;
+        String[] keys = new String[numPairs];
+        if (flowmapDir != null && numPairs > 0) {
+            cache = new FlowCache(flowmapDir + "/" + method, FlowCache.DEFAULT_MAX_BYTES);
+            String prevHash = FlowCache.frameHash(images.get(0));
+            for (int i = 0; i < numPairs; i++) {
+                String nextHash = FlowCache.frameHash(images.get(i + 1));
+                keys[i] = FlowCache.pairKey(prevHash, nextHash, method, params);
+                prevHash = nextHash;
             }
         }
 
-        if (method.equalsIgnoreCase("cv2")) {
-            // Convert images to grayscale
-            List<Mat> grayImages = new ArrayList<>();
-            for (Mat img : images) {
-                Mat gray = new Mat();
-                Imgproc.cvtColor(img, gray, Imgproc.COLOR_BGR2GRAY);
-                grayImages.add(gray);
+        // Load whatever pairs are cached, and only compute the missing ones
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < numPairs; i++) {
+            if (fromCache && cache != null) {
+                flowMaps[i] = cache.get(keys[i]);
             }
+            if (flowMaps[i] == null) {
+                missing.add(i);
+            }
+        }
 
-            // Calculate pair-wise optical flow maps using Farneback method
-            for (int i = 1; i < grayImages.size(); i++) {
-                Mat flow = new Mat();
-                Video.calcOpticalFlowFarneback(grayImages.get(i - 1), grayImages.get(i), flow, 
-                                               0.5, 5, 11, 5, 5, 1.1, 0);
-                flowMaps.add(flow);
+        boolean warmStart = method.equalsIgnoreCase("raft") && raft.usesInitialFlow();
+        if (warmStart && !missing.isEmpty() && missing.size() < numPairs) {
+            // A warm-started pair depends on the pair before it, so recompute the whole burst
+            missing.clear();
+            for (int i = 0; i < numPairs; i++) {
+                if (flowMaps[i] != null) {
+                    flowMaps[i].release();
+                }
+                missing.add(i);
             }
-        } else if (method.equalsIgnoreCase("raft")) {
-            // Calculate pair-wise optical flow maps using RAFT (DIS Optical Flow in Java)
-            flowMaps = Raft.calculateRaftOpticalFlow(images);
         }
 
-        // Cache results if possible
-        if (flowmapDir != null) {
-            for (int i = 0; i < flowMaps.size(); i++) {
-                ImageUtils.saveMatAsNpy(flowmapDir + "/" + method + "_flowmap_" + String.format("%03d", i), flowMaps.get(i));
+        if (!missing.isEmpty()) {
+            List<Mat> computed = method.equalsIgnoreCase("raft")
+                    ? raft.calculate(images, missing, flowScale)
+                    : new ParallelFlowEngine().calculate(images, missing,
+                                                         ParallelFlowEngine.downscaled(ParallelFlowEngine.farneback(), flowScale));
+            for (int k = 0; k < missing.size(); k++) {
+                int i = missing.get(k);
+                flowMaps[i] = computed.get(k);
+
+                // Cache results if possible
+                if (cache != null) {
+                    cache.put(keys[i], flowMaps[i]);
+                }
             }
         }
 
-        return flowMaps;
+        if (cache != null) {
+            cache.save();
+        }
+
+        return new ArrayList<>(Arrays.asList(flowMaps));
     }
 }
 public static Pair<Mat, Mat> composite(Mat sharpImage, Mat blurredImage, Mat[] flowMaps, Mat subjectMask) {
@@ -76,7 +110,7 @@ public static Pair<Mat, Mat> composite(Mat sharpImage, Mat blurredImage, Mat[] f
     Core.normalize(flowFaceMask, flowFaceMask, 0, 1, Core.NORM_MINMAX);
 
     // Perform alpha blending
-    Mat compositeImage = Composite.alphaBlending(sharpImage, flowFaceMask, blurredImage);
+    Mat compositeImage = Blending.alphaBlending(sharpImage, flowFaceMask, blurredImage);
 
     return new Pair<>(compositeImage, flowFaceMask);
 }
@@ -95,64 +129,98 @@ Imgcodecs.imwrite(outputDirectory + "/flow_face_mask.png", flowFaceMask);
 // calculateOpticalFlow
 import org.opencv.core.*;
 import org.opencv.imgcodecs.Imgcodecs;
-import org.opencv.imgproc.Imgproc;
-import org.opencv.video.Video;
 
-import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class ImageProcessor {
 
     public static List<Mat> calculateOpticalFlow(List<Mat> images, String method, boolean fromCache, String flowmapDir) {
-        if (flowmapDir != null) {
-            flowmapDir = flowmapDir + "/" + method;
-            new File(flowmapDir).mkdirs();
-        }
+        return calculateOpticalFlow(images, method, fromCache, flowmapDir, 1.0);
+    }
 
-        List<Mat> flowMaps = new ArrayList<>();
+    // flowScale < 1 computes flow on downscaled frames, see ParallelFlowEngine.downscaled
+    public static List<Mat> calculateOpticalFlow(List<Mat> images, String method, boolean fromCache, String flowmapDir,
+                                                 double flowScale) {
+        return calculateOpticalFlow(images, method, fromCache, flowmapDir, flowScale, Raft.defaultEngine());
+    }
 
-        // Load from cache if available
-        if (fromCache && flowmapDir != null && new File(flowmapDir).exists()) {
-            File[] files = new File(flowmapDir).listFiles((dir, name) -> name.endsWith(".npy"));
-            if (files != null && files.length > 0) {
-                for (File file : files) {
-                    Mat flowmap = ImageUtils.loadNpyAsMat(file.getAbsolutePath());
-                    flowMaps.add(flowmap);
-                }
-                return flowMaps;
+    // raft is the DIS engine used by the "raft" method; its params() are part of the cache key
+    public static List<Mat> calculateOpticalFlow(List<Mat> images, String method, boolean fromCache, String flowmapDir,
+                                                 double flowScale, Raft raft) {
+        String params;
+        if (method.equalsIgnoreCase("cv2")) {
+            // Pair-wise optical flow maps using Farneback method
+            params = ParallelFlowEngine.FARNEBACK_PARAMS;
+        } else if (method.equalsIgnoreCase("raft")) {
+            // Pair-wise optical flow maps using RAFT (DIS Optical Flow in Java)
+            params = raft.params();
+        } else {
+            return new ArrayList<>();
+        }
+        params = ParallelFlowEngine.downscaledParams(params, flowScale);
+
+        int numPairs = Math.max(0, images.size() - 1);
+        Mat[] flowMaps = new Mat[numPairs];
+
+        // Cache entries are keyed on the content of both frames plus the method and its parameters
+        FlowCache cache = null;
+        String[] keys = new String[numPairs];
+        if (flowmapDir != null && numPairs > 0) {
+            cache = new FlowCache(flowmapDir + "/" + method, FlowCache.DEFAULT_MAX_BYTES);
+            String prevHash = FlowCache.frameHash(images.get(0));
+            for (int i = 0; i < numPairs; i++) {
+                String nextHash = FlowCache.frameHash(images.get(i + 1));
+                keys[i] = FlowCache.pairKey(prevHash, nextHash, method, params);
+                prevHash = nextHash;
             }
         }
 
-        if (method.equalsIgnoreCase("cv2")) {
-            // Convert images to grayscale
-            List<Mat> grayImages = new ArrayList<>();
-            for (Mat img : images) {
-                Mat gray = new Mat();
-                Imgproc.cvtColor(img, gray, Imgproc.COLOR_BGR2GRAY);
-                grayImages.add(gray);
+        // Load whatever pairs are cached, and only compute the missing ones
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < numPairs; i++) {
+            if (fromCache && cache != null) {
+                flowMaps[i] = cache.get(keys[i]);
             }
+            if (flowMaps[i] == null) {
+                missing.add(i);
+            }
+        }
 
-            // Calculate pair-wise optical flow maps using Farneback method
-            for (int i = 1; i < grayImages.size(); i++) {
-                Mat flow = new Mat();
-                Video.calcOpticalFlowFarneback(grayImages.get(i - 1), grayImages.get(i), flow, 
-                                               0.5, 5, 11, 5, 5, 1.1, 0);
-                flowMaps.add(flow);
+        boolean warmStart = method.equalsIgnoreCase("raft") && raft.usesInitialFlow();
+        if (warmStart && !missing.isEmpty() && missing.size() < numPairs) {
+            // A warm-started pair depends on the pair before it, so recompute the whole burst
+            missing.clear();
+            for (int i = 0; i < numPairs; i++) {
+                if (flowMaps[i] != null) {
+                    flowMaps[i].release();
+                }
+                missing.add(i);
             }
-        } else if (method.equalsIgnoreCase("raft")) {
-            // Calculate pair-wise optical flow maps using RAFT (DIS Optical Flow in Java)
-            flowMaps = Raft.calculateRaftOpticalFlow(images);
         }
 
-        // Cache results if possible
-        if (flowmapDir != null) {
-            for (int i = 0; i < flowMaps.size(); i++) {
-                ImageUtils.saveMatAsNpy(flowmapDir + "/" + method + "_flowmap_" + String.format("%03d", i), flowMaps.get(i));
+        if (!missing.isEmpty()) {
+            List<Mat> computed = method.equalsIgnoreCase("raft")
+                    ? raft.calculate(images, missing, flowScale)
+                    : new ParallelFlowEngine().calculate(images, missing,
+                                                         ParallelFlowEngine.downscaled(ParallelFlowEngine.farneback(), flowScale));
+            for (int k = 0; k < missing.size(); k++) {
+                int i = missing.get(k);
+                flowMaps[i] = computed.get(k);
+
+                // Cache results if possible
+                if (cache != null) {
+                    cache.put(keys[i], flowMaps[i]);
+                }
             }
         }
 
-        return flowMaps;
+        if (cache != null) {
+            cache.save();
+        }
+
+        return new ArrayList<>(Arrays.asList(flowMaps));
     }
 }
 
@@ -0,0 +1,319 @@
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs the long-exposure stages as a dependency graph instead of one after another.
+ *
+ * <pre>
+ *   decode -> align(i) -+-> flow(i-1, i) -+-> blur(i-1, i)  (blur is applied in pair order)
+ *                       |                 +-> max flow magnitude F
+ *                       +-> naive blur(i)
+ *   align(0) -> subject detection
+ * </pre>
+ *
+ * Alignment and flow run on bounded worker pools and start as soon as their inputs exist,
+ * so flow for pair i only waits for frames i and i + 1. Blur accumulation runs on a single
+ * thread in pair order, and a frame is released once both pairs that use it are blurred.
+ * A flow map is released once it is blurred and folded into F, except the first one, which
+ * is kept as an example. At most maxFramesInFlight frames are decoded ahead of the blur
+ * stage, so memory is bounded by that window plus a fixed number of full-frame accumulators,
+ * whatever the number of frames.
+ */
+public class PipelineExecutor implements AutoCloseable {
+
+    private static final int NUM_FRAMES = (1 << 4) - 1;  // 15 intermediate frames
+
+    public static class Result {
+        public Mat sharpImage;
+        public Mat naiveBlurred;
+        public Mat subjectMask;
+        public Mat firstFlowMap;   // flow of the first pair; the others are released once used
+        public int numFrames;
+        public Mat flowMagnitude;  // per-pixel max over the flow maps, the F of Composite.calcMFlowFromF
+        public Mat blurredImage;
+    }
+
+    // An aligned frame together with its grayscale version for the flow stage
+    private static class AlignedFrame {
+        final Mat image;
+        final Mat gray = new Mat();
+
+        AlignedFrame(Mat image) {
+            this.image = image;
+            ParallelFlowEngine.toGray(image, gray);
+        }
+
+        void release(PipelineMetrics metrics) {
+            metrics.release(image, gray);
+        }
+    }
+
+    private final String method;
+    private final FeatureMatcher.Backend backend;
+    private final int maxFramesInFlight;
+    private final ExecutorService alignPool;
+    private final ExecutorService flowPool;
+    private final boolean ownsPools;
+    // Flow instances live as long as the flow pool's threads, so they stay warm across runs
+    private final ThreadLocal<ParallelFlowEngine.PairFlow> flowWorkers;
+
+    public PipelineExecutor(String method) {
+        this(method, Runtime.getRuntime().availableProcessors(), 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    public PipelineExecutor(String method, int numWorkers, int maxFramesInFlight) {
+        this(method, Raft.defaultEngine(), FeatureMatcher.Backend.DEFAULT, 1.0,
+             Executors.newFixedThreadPool(Math.max(1, numWorkers)), Executors.newFixedThreadPool(Math.max(1, numWorkers)),
+             maxFramesInFlight, true);
+    }
+
+    // Runs on pools owned by the caller, e.g. shared by every job of a batch
+    public PipelineExecutor(String method, ExecutorService alignPool, ExecutorService flowPool, int maxFramesInFlight) {
+        this(method, 1.0, alignPool, flowPool, maxFramesInFlight);
+    }
+
+    // flowScale < 1 computes flow on downscaled frames, see ParallelFlowEngine.downscaled
+    public PipelineExecutor(String method, double flowScale, ExecutorService alignPool, ExecutorService flowPool,
+                            int maxFramesInFlight) {
+        this(method, Raft.defaultEngine(), flowScale, alignPool, flowPool, maxFramesInFlight);
+    }
+
+    // raft configures the DIS workers of the "raft" method
+    public PipelineExecutor(String method, Raft raft, double flowScale, ExecutorService alignPool,
+                            ExecutorService flowPool, int maxFramesInFlight) {
+        this(method, raft, FeatureMatcher.Backend.DEFAULT, flowScale, alignPool, flowPool, maxFramesInFlight);
+    }
+
+    // backend selects the features and matcher used for alignment
+    public PipelineExecutor(String method, Raft raft, FeatureMatcher.Backend backend, double flowScale,
+                            ExecutorService alignPool, ExecutorService flowPool, int maxFramesInFlight) {
+        this(method, raft, backend, flowScale, alignPool, flowPool, maxFramesInFlight, false);
+    }
+
+    private PipelineExecutor(String method, Raft raft, FeatureMatcher.Backend backend, double flowScale,
+                             ExecutorService alignPool, ExecutorService flowPool, int maxFramesInFlight,
+                             boolean ownsPools) {
+        this.method = method;
+        this.backend = backend;
+        this.maxFramesInFlight = Math.max(2, maxFramesInFlight);
+        this.alignPool = alignPool;
+        this.flowPool = flowPool;
+        this.ownsPools = ownsPools;
+
+        // Pairs reach the flow pool in no fixed order, so a warm start would make flows vary between runs
+        if (method.equalsIgnoreCase("raft") && raft.usesInitialFlow()) {
+            throw new IllegalArgumentException("PipelineExecutor needs a DIS engine without initialFlow: " + raft.params());
+        }
+        Supplier<ParallelFlowEngine.PairFlow> workerFactory = method.equalsIgnoreCase("raft")
+                ? raft.worker() : ParallelFlowEngine.farneback();
+        this.flowWorkers = ThreadLocal.withInitial(ParallelFlowEngine.downscaled(workerFactory, flowScale));
+    }
+
+    public String method() {
+        return method;
+    }
+
+    public Result run(FrameSource source, Function<Mat, Mat> subjectDetector) {
+        return run(source, subjectDetector, new PipelineMetrics());
+    }
+
+    // Stages of frame i are recorded under pair i - 1, the pair that frame completes
+    public Result run(FrameSource source, Function<Mat, Mat> subjectDetector, PipelineMetrics metrics) {
+        if (!source.hasNext()) {
+            throw new RuntimeException("No images found!");
+        }
+
+        ExecutorService blurStage = Executors.newSingleThreadExecutor();
+        Semaphore inFlight = new Semaphore(maxFramesInFlight);
+
+        try {
+            // The first frame is the alignment reference and the sharp image
+            AlignedFrame reference;
+            Size workingSize;
+            try (PipelineMetrics.Span span = metrics.stage("decode")) {
+                Mat first = source.next();
+                workingSize = workingSize(first);
+                reference = new AlignedFrame(prepare(first, workingSize));
+                span.allocated(reference.image, reference.gray);
+            }
+            AlignImages.Reference alignReference = new AlignImages.Reference(reference.image, backend);
+
+            CompletableFuture<Mat> subject = CompletableFuture.supplyAsync(() -> {
+                try (PipelineMetrics.Span span = metrics.stage("subject")) {
+                    Mat subjectMask = subjectDetector.apply(reference.image);
+                    span.allocated(subjectMask);
+                    return subjectMask;
+                }
+            }, alignPool);
+
+            // Both accumulators are only touched on the blur stage thread
+            ExposureAccumulator naive = new ExposureAccumulator();
+            ExposureAccumulator blur = new ExposureAccumulator();
+            FlowMagnitudeAccumulator magnitudes = new FlowMagnitudeAccumulator();
+            FlowRemapper remapper = new FlowRemapper(workingSize);
+            Mat scratch = new Mat();
+
+            CompletableFuture<AlignedFrame> prevAligned = CompletableFuture.completedFuture(reference);
+            CompletableFuture<Void> naiveDone = CompletableFuture.runAsync(() -> naive.add(reference.image), blurStage);
+            CompletableFuture<Void> blurDone = CompletableFuture.runAsync(() -> blur.add(reference.image), blurStage);
+            CompletableFuture<Void> magnitudeDone = CompletableFuture.completedFuture(null);
+            CompletableFuture<Mat> firstFlow = null;
+            int numPairs = 0;
+
+            while (source.hasNext()) {
+                int pair = numPairs++;
+                acquire(inFlight, blurDone);
+                Mat frame;
+                try (PipelineMetrics.Span span = metrics.stage("decode", pair)) {
+                    frame = prepare(source.next(), workingSize);
+                    span.allocated(frame);
+                }
+
+                CompletableFuture<AlignedFrame> aligned = CompletableFuture.supplyAsync(() -> {
+                    try (PipelineMetrics.Span span = metrics.stage("align", pair)) {
+                        Mat warped = AlignImages.alignImage(alignReference, frame);
+                        metrics.release(frame);
+                        AlignedFrame alignedFrame = new AlignedFrame(warped);
+                        span.allocated(alignedFrame.image, alignedFrame.gray);
+                        return alignedFrame;
+                    }
+                }, alignPool);
+
+                CompletableFuture<AlignedFrame> prev = prevAligned;
+                CompletableFuture<Mat> flow = prev.thenCombineAsync(aligned, (a, b) -> {
+                    try (PipelineMetrics.Span span = metrics.stage("flow", pair)) {
+                        Mat flowMap = new Mat();
+                        flowWorkers.get().calc(a.gray, b.gray, flowMap);
+                        span.allocated(flowMap);
+                        return flowMap;
+                    }
+                }, flowPool);
+                if (firstFlow == null) {
+                    firstFlow = flow;
+                }
+
+                // F grows as flows arrive, so it is complete with the last flow
+                magnitudeDone = magnitudeDone.thenCombineAsync(flow, (v, f) -> {
+                    try (PipelineMetrics.Span span = metrics.stage("magnitude", pair)) {
+                        magnitudes.add(f);
+                    }
+                    return (Void) null;
+                }, blurStage);
+
+                naiveDone = naiveDone.thenCombineAsync(aligned, (v, b) -> {
+                    try (PipelineMetrics.Span span = metrics.stage("naive", pair)) {
+                        naive.add(b.image);
+                    }
+                    return (Void) null;
+                }, blurStage);
+
+                blurDone = CompletableFuture.allOf(blurDone, flow).thenRunAsync(() -> {
+                    try (PipelineMetrics.Span span = metrics.stage("blur", pair)) {
+                        ImageProcessor.accumulatePair(prev.join().image, aligned.join().image, flow.join(),
+                                                      NUM_FRAMES, remapper, blur, scratch);
+                    }
+                }, blurStage);
+
+                // The previous frame has no further users once this pair is blurred
+                CompletableFuture.allOf(blurDone, naiveDone).whenComplete((v, e) -> {
+                    if (e == null && prev.join() != reference) {
+                        prev.join().release(metrics);
+                    }
+                    inFlight.release();
+                });
+
+                // Nor has the flow once it is blurred and in F
+                CompletableFuture.allOf(blurDone, magnitudeDone).whenComplete((v, e) -> {
+                    if (e == null && pair > 0) {
+                        metrics.release(flow.join());
+                    }
+                });
+
+                prevAligned = aligned;
+            }
+
+            CompletableFuture.allOf(blurDone, naiveDone, magnitudeDone).join();
+            AlignedFrame last = prevAligned.join();
+            if (last != reference) {
+                last.release(metrics);
+            }
+
+            Result result = new Result();
+            result.sharpImage = reference.image;
+            try (PipelineMetrics.Span span = metrics.stage("mean")) {
+                result.naiveBlurred = naive.mean();
+                result.blurredImage = blur.mean();
+                span.allocated(result.naiveBlurred, result.blurredImage);
+            }
+            result.flowMagnitude = magnitudes.result();
+            result.subjectMask = subject.join();
+            result.firstFlowMap = firstFlow != null ? firstFlow.join() : new Mat();
+            result.numFrames = numPairs + 1;
+
+            metrics.release(reference.gray);
+            scratch.release();
+            remapper.release();
+            naive.release();
+            blur.release();
+            magnitudes.release();
+            return result;
+        } catch (CompletionException e) {
+            throw new RuntimeException("Error in pipeline execution", e.getCause());
+        } finally {
+            blurStage.shutdownNow();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (ownsPools) {
+            alignPool.shutdownNow();
+            flowPool.shutdownNow();
+        }
+    }
+
+    // Waits for room in the pipeline, surfacing a failure of the downstream stages instead of hanging
+    private static void acquire(Semaphore inFlight, CompletableFuture<Void> downstream) {
+        try {
+            while (!inFlight.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                if (downstream.isCompletedExceptionally()) {
+                    downstream.join();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Pipeline execution interrupted", e);
+        }
+    }
+
+    // RAFT-style flow expects sizes divisible by 8
+    private Size workingSize(Mat first) {
+        int H = first.rows();
+        int W = first.cols();
+        if (method.equalsIgnoreCase("raft")) {
+            H -= H % 8;
+            W -= W % 8;
+        }
+        return new Size(W, H);
+    }
+
+    private static Mat prepare(Mat frame, Size workingSize) {
+        if (frame.size().equals(workingSize)) {
+            return frame;
+        }
+        Mat resizedImg = new Mat();
+        Imgproc.resize(frame, resizedImg, workingSize);
+        frame.release();
+        return resizedImg;
+    }
+}
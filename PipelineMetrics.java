@@ -0,0 +1,267 @@
+import org.opencv.core.Mat;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records wall time, CPU time, Mat bytes allocated and live Mats per pipeline stage.
+ *
+ * A stage is measured with a span:
+ *
+ * <pre>
+ *   try (PipelineMetrics.Span span = metrics.stage("flow", pair)) {
+ *       ...
+ *       span.allocated(flowMap);
+ *   }
+ * </pre>
+ *
+ * Spans with a pair index are also kept per frame pair. OpenCV allocates pixel buffers
+ * natively, so Mat bytes and live Mats only count what the stages report through
+ * Span.allocated() and release(). CPU time is that of the calling thread and does not
+ * include OpenCV's internal worker threads. With tracing on, every span is also kept as
+ * an event for writeTrace (Chrome trace format, viewable in chrome://tracing or Perfetto).
+ */
+public class PipelineMetrics {
+
+    public static final int NO_PAIR = -1;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static class Stats {
+        long count;
+        long wallNanos;
+        long cpuNanos;
+        long matBytes;
+        long peakLiveMats;
+
+        void add(Span span, long liveMats) {
+            count++;
+            wallNanos += span.wallNanos;
+            cpuNanos += span.cpuNanos;
+            matBytes += span.matBytes;
+            peakLiveMats = Math.max(peakLiveMats, liveMats);
+        }
+    }
+
+    private static class Event {
+        final String stage;
+        final int pair;
+        final long threadId;
+        final long startNanos;
+        final long wallNanos;
+
+        Event(Span span) {
+            this.stage = span.stage;
+            this.pair = span.pair;
+            this.threadId = span.threadId;
+            this.startNanos = span.startNanos;
+            this.wallNanos = span.wallNanos;
+        }
+    }
+
+    public class Span implements AutoCloseable {
+        private final String stage;
+        private final int pair;
+        private final long threadId = Thread.currentThread().getId();
+        private final long startNanos = System.nanoTime();
+        private final long startCpuNanos = cpuTime();
+        private long wallNanos;
+        private long cpuNanos;
+        private long matBytes;
+
+        private Span(String stage, int pair) {
+            this.stage = stage;
+            this.pair = pair;
+        }
+
+        // Counts Mats created by this stage towards its bytes and the live Mats
+        public void allocated(Mat... mats) {
+            for (Mat mat : mats) {
+                matBytes += mat.total() * mat.elemSize();
+            }
+            PipelineMetrics.this.allocated(mats.length);
+        }
+
+        @Override
+        public void close() {
+            wallNanos = System.nanoTime() - startNanos;
+            cpuNanos = cpuTime() - startCpuNanos;
+            record(this);
+        }
+    }
+
+    private final boolean tracing;
+    private final long createdNanos = System.nanoTime();
+    private final Map<String, Stats> stages = new LinkedHashMap<>();
+    private final Map<String, Map<Integer, Stats>> pairs = new LinkedHashMap<>();
+    private final List<Event> events = new ArrayList<>();
+    private long liveMats;
+    private long peakLiveMats;
+
+    public PipelineMetrics() {
+        this(false);
+    }
+
+    public PipelineMetrics(boolean tracing) {
+        this.tracing = tracing;
+    }
+
+    public boolean isTracing() {
+        return tracing;
+    }
+
+    public Span stage(String name) {
+        return stage(name, NO_PAIR);
+    }
+
+    public Span stage(String name, int pair) {
+        return new Span(name, pair);
+    }
+
+    public synchronized void allocated(int mats) {
+        liveMats += mats;
+        peakLiveMats = Math.max(peakLiveMats, liveMats);
+    }
+
+    // Releases the Mats and removes them from the live count
+    public void release(Mat... mats) {
+        for (Mat mat : mats) {
+            mat.release();
+        }
+        synchronized (this) {
+            liveMats -= mats.length;
+        }
+    }
+
+    public synchronized long peakLiveMats() {
+        return peakLiveMats;
+    }
+
+    private synchronized void record(Span span) {
+        stages.computeIfAbsent(span.stage, k -> new Stats()).add(span, liveMats);
+        if (span.pair != NO_PAIR) {
+            pairs.computeIfAbsent(span.stage, k -> new TreeMap<>())
+                 .computeIfAbsent(span.pair, k -> new Stats()).add(span, liveMats);
+        }
+        if (tracing) {
+            events.add(new Event(span));
+        }
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"peakLiveMats\": ").append(peakLiveMats).append(",\n  \"stages\": [");
+        String separator = "\n";
+        for (Map.Entry<String, Stats> stage : stages.entrySet()) {
+            json.append(separator).append("    {\"stage\": \"").append(stage.getKey()).append("\", ");
+            appendStats(json, stage.getValue());
+
+            Map<Integer, Stats> stagePairs = pairs.get(stage.getKey());
+            if (stagePairs != null) {
+                json.append(", \"pairs\": [");
+                String pairSeparator = "";
+                for (Map.Entry<Integer, Stats> pair : stagePairs.entrySet()) {
+                    json.append(pairSeparator).append("\n      {\"pair\": ").append(pair.getKey()).append(", ");
+                    appendStats(json, pair.getValue());
+                    json.append("}");
+                    pairSeparator = ",";
+                }
+                json.append("\n    ]");
+            }
+            json.append("}");
+            separator = ",\n";
+        }
+        json.append("\n  ]\n}\n");
+        return json.toString();
+    }
+
+    // Per-stage totals only; per-pair series would make the label cardinality grow with the burst
+    public synchronized String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        appendMetric(text, "pipeline_stage_calls_total", "counter", "Number of times the stage ran");
+        for (Map.Entry<String, Stats> stage : stages.entrySet()) {
+            appendSample(text, "pipeline_stage_calls_total", stage.getKey(), stage.getValue().count);
+        }
+        appendMetric(text, "pipeline_stage_wall_seconds_total", "counter", "Wall time spent in the stage");
+        for (Map.Entry<String, Stats> stage : stages.entrySet()) {
+            appendSample(text, "pipeline_stage_wall_seconds_total", stage.getKey(), stage.getValue().wallNanos / 1e9);
+        }
+        appendMetric(text, "pipeline_stage_cpu_seconds_total", "counter", "CPU time of the threads running the stage");
+        for (Map.Entry<String, Stats> stage : stages.entrySet()) {
+            appendSample(text, "pipeline_stage_cpu_seconds_total", stage.getKey(), stage.getValue().cpuNanos / 1e9);
+        }
+        appendMetric(text, "pipeline_stage_mat_bytes_total", "counter", "Bytes of Mats allocated by the stage");
+        for (Map.Entry<String, Stats> stage : stages.entrySet()) {
+            appendSample(text, "pipeline_stage_mat_bytes_total", stage.getKey(), stage.getValue().matBytes);
+        }
+        appendMetric(text, "pipeline_stage_peak_live_mats", "gauge", "Most live Mats seen when the stage finished");
+        for (Map.Entry<String, Stats> stage : stages.entrySet()) {
+            appendSample(text, "pipeline_stage_peak_live_mats", stage.getKey(), stage.getValue().peakLiveMats);
+        }
+        appendMetric(text, "pipeline_peak_live_mats", "gauge", "Most live Mats seen during the run");
+        text.append("pipeline_peak_live_mats ").append(peakLiveMats).append('\n');
+        return text.toString();
+    }
+
+    // Chrome trace event format, one complete event per span
+    public synchronized String toTrace() {
+        StringBuilder json = new StringBuilder("{\"traceEvents\": [");
+        String separator = "\n";
+        for (Event event : events) {
+            json.append(separator).append(String.format(Locale.ROOT,
+                    "  {\"name\": \"%s\", \"ph\": \"X\", \"pid\": 1, \"tid\": %d, \"ts\": %.1f, \"dur\": %.1f, \"args\": {\"pair\": %d}}",
+                    event.stage, event.threadId, (event.startNanos - createdNanos) / 1e3, event.wallNanos / 1e3, event.pair));
+            separator = ",\n";
+        }
+        json.append("\n]}\n");
+        return json.toString();
+    }
+
+    public void writeJson(String filePath) {
+        write(filePath, toJson());
+    }
+
+    public void writePrometheus(String filePath) {
+        write(filePath, toPrometheus());
+    }
+
+    public void writeTrace(String filePath) {
+        write(filePath, toTrace());
+    }
+
+    private static void write(String filePath, String content) {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(filePath))) {
+            writer.print(content);
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing metrics: " + filePath, e);
+        }
+    }
+
+    private static void appendStats(StringBuilder json, Stats stats) {
+        json.append(String.format(Locale.ROOT,
+                "\"count\": %d, \"wallMs\": %.3f, \"cpuMs\": %.3f, \"matBytes\": %d, \"peakLiveMats\": %d",
+                stats.count, stats.wallNanos / 1e6, stats.cpuNanos / 1e6, stats.matBytes, stats.peakLiveMats));
+    }
+
+    private static void appendMetric(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void appendSample(StringBuilder text, String name, String stage, Number value) {
+        text.append(name).append("{stage=\"").append(stage).append("\"} ").append(value).append('\n');
+    }
+}
@@ -0,0 +1,428 @@
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Matrix-free 5-point Poisson system restricted to the masked pixels of an image.
+ *
+ * The unknown/pixel index, the neighbour table and the multigrid hierarchy only depend on
+ * the mask, so they are built once and shared by every channel that is solved against the
+ * same mask.
+ *
+ * The system is solved by conjugate gradient preconditioned with one multigrid V-cycle.
+ * Each coarser level halves the grid: a coarse cell is an unknown when any of its 2x2 fine
+ * cells is, prolongation is cell-centered bilinear (9/16, 3/16, 3/16, 1/16) with zero outside
+ * the mask, restriction is its transpose, and every level uses the same Dirichlet 5-point
+ * operator. Gauss-Seidel runs forward before and backward after the coarse correction, so
+ * the V-cycle is symmetric and CG stays valid. The iteration count then stays roughly
+ * constant as the mask grows, instead of growing with its diameter.
+ */
+public class PoissonSolver {
+
+    // Relative residual |b - Ax| / |b| at which a solve stops
+    private static final double TOLERANCE = 1e-6;
+    // Iteration limit is MIN_ITERATIONS + sqrt(unknowns), the order unpreconditioned CG needs
+    private static final int MIN_ITERATIONS = 200;
+    // Gauss-Seidel sweeps before and after the coarse correction
+    private static final int SMOOTHING_SWEEPS = 2;
+    // Levels stop coarsening below this many unknowns, which are then smoothed COARSE_SWEEPS times
+    private static final int COARSEST_UNKNOWNS = 64;
+    private static final int COARSE_SWEEPS = 20;
+
+    private final int rows;
+    private final int cols;
+
+    // Unknown index -> flat pixel index (row * cols + col)
+    private final int[] pixelOf;
+    // 4 entries per unknown: index of a masked neighbour, or -1
+    private final int[] unknownNeighbours;
+    // 4 entries per unknown: flat pixel index of an unmasked (fixed) neighbour, or -1
+    private final int[] fixedNeighbours;
+    // Multigrid hierarchy; levels.get(0) is the system above
+    private final List<Level> levels = new ArrayList<>();
+
+    // One grid of the hierarchy, with unknowns numbered row-major
+    private static class Level {
+        final int rows;
+        final int cols;
+        final int[] pixelOf;
+        // 4 entries per unknown: index of a neighbouring unknown, or -1
+        final int[] neighbours;
+        // 4 entries per unknown: the coarse unknowns it interpolates from, with weights
+        // PROLONGATION_WEIGHTS, or -1; filled in when the next level is built
+        int[] coarse;
+
+        Level(int rows, int cols, int[] pixelOf, int[] neighbours) {
+            this.rows = rows;
+            this.cols = cols;
+            this.pixelOf = pixelOf;
+            this.neighbours = neighbours;
+        }
+
+        int size() {
+            return pixelOf.length;
+        }
+    }
+
+    // Parent cell, vertical neighbour, horizontal neighbour, diagonal neighbour
+    private static final double[] PROLONGATION_WEIGHTS = {9.0 / 16, 3.0 / 16, 3.0 / 16, 1.0 / 16};
+
+    public PoissonSolver(Mat mask) {
+        this.rows = mask.rows();
+        this.cols = mask.cols();
+
+        Mat singleChannel = mask;
+        if (mask.channels() > 1) {
+            singleChannel = new Mat();
+            Core.extractChannel(mask, singleChannel, 0);
+        }
+        float[] maskData = toFloatArray(singleChannel);
+
+        // Number the masked pixels
+        int[] unknownOf = new int[rows * cols];
+        int numUnknowns = 0;
+        for (int p = 0; p < maskData.length; p++) {
+            unknownOf[p] = maskData[p] != 0 ? numUnknowns++ : -1;
+        }
+
+        pixelOf = new int[numUnknowns];
+        unknownNeighbours = new int[numUnknowns * 4];
+        fixedNeighbours = new int[numUnknowns * 4];
+
+        for (int p = 0; p < unknownOf.length; p++) {
+            int k = unknownOf[p];
+            if (k < 0) {
+                continue;
+            }
+            pixelOf[k] = p;
+
+            int row = p / cols;
+            int col = p % cols;
+            int[] candidates = {
+                    row + 1 < rows ? p + cols : -1,
+                    row - 1 >= 0 ? p - cols : -1,
+                    col + 1 < cols ? p + 1 : -1,
+                    col - 1 >= 0 ? p - 1 : -1
+            };
+            for (int d = 0; d < 4; d++) {
+                int q = candidates[d];
+                unknownNeighbours[k * 4 + d] = q >= 0 ? unknownOf[q] : -1;
+                fixedNeighbours[k * 4 + d] = q >= 0 && unknownOf[q] < 0 ? q : -1;
+            }
+        }
+
+        levels.add(new Level(rows, cols, pixelOf, unknownNeighbours));
+        while (levels.get(levels.size() - 1).size() > COARSEST_UNKNOWNS) {
+            Level coarse = coarsen(levels.get(levels.size() - 1));
+            if (coarse == null) {
+                break;
+            }
+            levels.add(coarse);
+        }
+    }
+
+    // Next coarser level of fine (and fine.coarse), or null when the grid can't shrink further
+    private static Level coarsen(Level fine) {
+        if (fine.rows < 2 && fine.cols < 2) {
+            return null;
+        }
+        int rows = (fine.rows + 1) / 2;
+        int cols = (fine.cols + 1) / 2;
+
+        // A coarse cell is an unknown when any of its fine cells is
+        int[] unknownOf = new int[rows * cols];
+        Arrays.fill(unknownOf, -1);
+        for (int k = 0; k < fine.size(); k++) {
+            int p = fine.pixelOf[k];
+            unknownOf[(p / fine.cols / 2) * cols + (p % fine.cols) / 2] = 0;
+        }
+        int numUnknowns = 0;
+        for (int p = 0; p < unknownOf.length; p++) {
+            if (unknownOf[p] == 0) {
+                unknownOf[p] = numUnknowns++;
+            }
+        }
+
+        int[] pixelOf = new int[numUnknowns];
+        int[] neighbours = new int[numUnknowns * 4];
+        for (int p = 0; p < unknownOf.length; p++) {
+            int k = unknownOf[p];
+            if (k < 0) {
+                continue;
+            }
+            pixelOf[k] = p;
+            int row = p / cols;
+            int col = p % cols;
+            neighbours[k * 4] = row + 1 < rows ? unknownOf[p + cols] : -1;
+            neighbours[k * 4 + 1] = row - 1 >= 0 ? unknownOf[p - cols] : -1;
+            neighbours[k * 4 + 2] = col + 1 < cols ? unknownOf[p + 1] : -1;
+            neighbours[k * 4 + 3] = col - 1 >= 0 ? unknownOf[p - 1] : -1;
+        }
+
+        // Fine cell (row, col) sits in the corner of its parent that faces (row + dr, col + dc)
+        fine.coarse = new int[fine.size() * 4];
+        for (int k = 0; k < fine.size(); k++) {
+            int row = fine.pixelOf[k] / fine.cols;
+            int col = fine.pixelOf[k] % fine.cols;
+            int parentRow = row / 2;
+            int parentCol = col / 2;
+            int otherRow = parentRow + (row % 2 == 0 ? -1 : 1);
+            int otherCol = parentCol + (col % 2 == 0 ? -1 : 1);
+            boolean rowInside = otherRow >= 0 && otherRow < rows;
+            boolean colInside = otherCol >= 0 && otherCol < cols;
+
+            fine.coarse[k * 4] = unknownOf[parentRow * cols + parentCol];
+            fine.coarse[k * 4 + 1] = rowInside ? unknownOf[otherRow * cols + parentCol] : -1;
+            fine.coarse[k * 4 + 2] = colInside ? unknownOf[parentRow * cols + otherCol] : -1;
+            fine.coarse[k * 4 + 3] = rowInside && colInside ? unknownOf[otherRow * cols + otherCol] : -1;
+        }
+        return new Level(rows, cols, pixelOf, neighbours);
+    }
+
+    public int numUnknowns() {
+        return pixelOf.length;
+    }
+
+    /**
+     * Solves one channel with multigrid-preconditioned conjugate gradient. Pixels outside the mask
+     * keep the target value, pixels inside the mask follow the source gradient (or the larger of
+     * source and target gradient when isAlpha is set). Returns a single-channel CV_32F Mat, and
+     * throws a RuntimeException when the solve does not converge within the iteration limit.
+     */
+    public Mat solve(Mat source, Mat target, boolean isAlpha) {
+        float[] src = toFloatArray(source);
+        float[] tgt = toFloatArray(target);
+        int n = pixelOf.length;
+
+        // Right-hand side: guidance Laplacian plus the known boundary values
+        double[] b = new double[n];
+        double[] x = new double[n];
+        for (int k = 0; k < n; k++) {
+            int p = pixelOf[k];
+            double grad = laplacian(src, p);
+            if (isAlpha) {
+                grad = Math.max(grad, laplacian(tgt, p));
+            }
+            for (int d = 0; d < 4; d++) {
+                int q = fixedNeighbours[k * 4 + d];
+                if (q >= 0) {
+                    grad += tgt[q];
+                }
+            }
+            b[k] = grad;
+            x[k] = tgt[p];
+        }
+
+        conjugateGradient(b, x);
+
+        float[] result = tgt.clone();
+        for (int k = 0; k < n; k++) {
+            result[pixelOf[k]] = (float) x[k];
+        }
+
+        Mat out = new Mat(rows, cols, CvType.CV_32F);
+        out.put(0, 0, result);
+        return out;
+    }
+
+    // Preconditioned conjugate gradient. Stops once |r| <= TOLERANCE * |b| and fails if that
+    // takes more than the iteration limit, rather than returning a partially solved blend.
+    private void conjugateGradient(double[] b, double[] x) {
+        int n = x.length;
+        int maxIterations = MIN_ITERATIONS + (int) Math.sqrt(n);
+        double[] r = new double[n];
+        double[] z = new double[n];
+        double[] p = new double[n];
+        double[] ap = new double[n];
+
+        // V-cycle work arrays: right-hand side, correction and residual per level
+        double[][] levelB = new double[levels.size()][];
+        double[][] levelX = new double[levels.size()][];
+        double[][] levelR = new double[levels.size()][];
+        for (int l = 0; l < levels.size(); l++) {
+            levelB[l] = new double[levels.get(l).size()];
+            levelX[l] = new double[levels.get(l).size()];
+            levelR[l] = new double[levels.get(l).size()];
+        }
+
+        applyA(levels.get(0), x, ap);
+        double bNorm = 0;
+        double rr = 0;
+        for (int k = 0; k < n; k++) {
+            r[k] = b[k] - ap[k];
+            rr += r[k] * r[k];
+            bNorm += b[k] * b[k];
+        }
+        precondition(r, z, levelB, levelX, levelR);
+        double rz = 0;
+        for (int k = 0; k < n; k++) {
+            p[k] = z[k];
+            rz += r[k] * z[k];
+        }
+
+        double threshold = TOLERANCE * TOLERANCE * Math.max(bNorm, 1e-12);
+        int iter = 0;
+        for (; iter < maxIterations && rr > threshold; iter++) {
+            applyA(levels.get(0), p, ap);
+            double pAp = 0;
+            for (int k = 0; k < n; k++) {
+                pAp += p[k] * ap[k];
+            }
+            double alpha = rz / pAp;
+
+            rr = 0;
+            for (int k = 0; k < n; k++) {
+                x[k] += alpha * p[k];
+                r[k] -= alpha * ap[k];
+                rr += r[k] * r[k];
+            }
+
+            precondition(r, z, levelB, levelX, levelR);
+            double rzNew = 0;
+            for (int k = 0; k < n; k++) {
+                rzNew += r[k] * z[k];
+            }
+            double beta = rzNew / rz;
+            for (int k = 0; k < n; k++) {
+                p[k] = z[k] + beta * p[k];
+            }
+            rz = rzNew;
+        }
+
+        if (rr > threshold) {
+            throw new RuntimeException("Poisson solve did not converge in " + iter + " iterations (relative residual "
+                    + Math.sqrt(rr / Math.max(bNorm, 1e-12)) + ", " + n + " unknowns)");
+        }
+    }
+
+    // z = M^-1 r, where M^-1 is one V-cycle from a zero initial guess
+    private void precondition(double[] r, double[] z, double[][] levelB, double[][] levelX, double[][] levelR) {
+        System.arraycopy(r, 0, levelB[0], 0, r.length);
+        vCycle(0, levelB, levelX, levelR);
+        System.arraycopy(levelX[0], 0, z, 0, z.length);
+    }
+
+    // Approximately solves A x = b on level l, starting from x = 0
+    private void vCycle(int l, double[][] levelB, double[][] levelX, double[][] levelR) {
+        Level level = levels.get(l);
+        double[] b = levelB[l];
+        double[] x = levelX[l];
+        Arrays.fill(x, 0);
+
+        if (l == levels.size() - 1) {
+            for (int sweep = 0; sweep < COARSE_SWEEPS; sweep++) {
+                gaussSeidel(level, b, x, true);
+                gaussSeidel(level, b, x, false);
+            }
+            return;
+        }
+
+        for (int sweep = 0; sweep < SMOOTHING_SWEEPS; sweep++) {
+            gaussSeidel(level, b, x, true);
+        }
+
+        // Restrict the residual: coarse b = P^T (b - A x)
+        double[] residual = levelR[l];
+        applyA(level, x, residual);
+        double[] coarseB = levelB[l + 1];
+        Arrays.fill(coarseB, 0);
+        for (int k = 0; k < level.size(); k++) {
+            double value = b[k] - residual[k];
+            for (int c = 0; c < 4; c++) {
+                int j = level.coarse[k * 4 + c];
+                if (j >= 0) {
+                    coarseB[j] += PROLONGATION_WEIGHTS[c] * value;
+                }
+            }
+        }
+
+        vCycle(l + 1, levelB, levelX, levelR);
+
+        // Prolongate the coarse correction: x += P coarse x
+        double[] coarseX = levelX[l + 1];
+        for (int k = 0; k < level.size(); k++) {
+            double correction = 0;
+            for (int c = 0; c < 4; c++) {
+                int j = level.coarse[k * 4 + c];
+                if (j >= 0) {
+                    correction += PROLONGATION_WEIGHTS[c] * coarseX[j];
+                }
+            }
+            x[k] += correction;
+        }
+
+        for (int sweep = 0; sweep < SMOOTHING_SWEEPS; sweep++) {
+            gaussSeidel(level, b, x, false);
+        }
+    }
+
+    // One in-place Gauss-Seidel sweep for A x = b, in unknown order or in reverse
+    private static void gaussSeidel(Level level, double[] b, double[] x, boolean forward) {
+        int n = level.size();
+        for (int i = 0; i < n; i++) {
+            int k = forward ? i : n - 1 - i;
+            double sum = b[k];
+            for (int d = 0; d < 4; d++) {
+                int j = level.neighbours[k * 4 + d];
+                if (j >= 0) {
+                    sum += x[j];
+                }
+            }
+            x[k] = sum / 4;
+        }
+    }
+
+    // out = A * v, where A is the 5-point Laplacian over the unknowns of level
+    private static void applyA(Level level, double[] v, double[] out) {
+        int[] neighbours = level.neighbours;
+        for (int k = 0; k < v.length; k++) {
+            double sum = 4 * v[k];
+            for (int d = 0; d < 4; d++) {
+                int j = neighbours[k * 4 + d];
+                if (j >= 0) {
+                    sum -= v[j];
+                }
+            }
+            out[k] = sum;
+        }
+    }
+
+    private double laplacian(float[] img, int p) {
+        int row = p / cols;
+        int col = p % cols;
+        double grad = 4 * img[p];
+
+        if (row + 1 < rows) {
+            grad -= img[p + cols];
+        }
+
+        if (row - 1 >= 0) {
+            grad -= img[p - cols];
+        }
+
+        if (col + 1 < cols) {
+            grad -= img[p + 1];
+        }
+
+        if (col - 1 >= 0) {
+            grad -= img[p - 1];
+        }
+
+        return grad;
+    }
+
+    private static float[] toFloatArray(Mat mat) {
+        Mat floatMat = new Mat();
+        mat.convertTo(floatMat, CvType.CV_32F);
+        if (!floatMat.isContinuous()) {
+            floatMat = floatMat.clone();
+        }
+        float[] data = new float[(int) floatMat.total()];
+        floatMat.get(0, 0, data);
+        return data;
+    }
+}
@@ -1,23 +1,206 @@
 import org.opencv.core.*;
-import org.opencv.imgproc.Imgproc;
 import org.opencv.video.DISOpticalFlow;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 
-public class Raft {
+/**
+ * Long-lived DIS optical flow engine (equivalent to RAFT in OpenCV).
+ *
+ * The preset and, optionally, the finest scale, patch size and variational refinement
+ * iterations are configurable. Flow runs on a pool owned by the engine, where every thread
+ * keeps one configured DISOpticalFlow instance across calls. Workers are fed 8-bit
+ * grayscale frames that ParallelFlowEngine converts once per frame.
+ *
+ * With useInitialFlow (off unless requested), a worker that computes consecutive pairs
+ * starts each pair from the previous pair's flow. The result then depends on which pairs
+ * a worker saw before, so calculate() runs such an engine on one thread in pair order, and
+ * its workers are only meant for callers that feed pairs in a fixed order, like
+ * RollingLongExposure. PipelineExecutor rejects it.
+ */
+public class Raft implements AutoCloseable {
+
+    // Leaves a setting at the value of the preset
+    public static final int PRESET_VALUE = -1;
+
+    private static final Raft DEFAULT = new Raft();
+
+    // Identifies the flow parameters of the default engine in flow cache keys
+    public static final String PARAMS = DEFAULT.params();
+
+    private final int preset;
+    private final int finestScale;
+    private final int patchSize;
+    private final int refinementIterations;
+    private final boolean useInitialFlow;
+    private final int numThreads = Runtime.getRuntime().availableProcessors();
+    private final ExecutorService executor;
+    private final ThreadLocal<ParallelFlowEngine.PairFlow> workers = ThreadLocal.withInitial(this::newWorker);
+
+    public Raft() {
+        this(DISOpticalFlow.PRESET_ULTRAFAST);
+    }
+
+    public Raft(int preset) {
+        this(preset, PRESET_VALUE, PRESET_VALUE, PRESET_VALUE, false);
+    }
+
+    public Raft(int preset, int finestScale, int patchSize, int refinementIterations, boolean useInitialFlow) {
+        this.preset = preset;
+        this.finestScale = finestScale;
+        this.patchSize = patchSize;
+        this.refinementIterations = refinementIterations;
+        this.useInitialFlow = useInitialFlow;
+        this.executor = Executors.newFixedThreadPool(numThreads, runnable -> {
+            Thread thread = new Thread(runnable, "dis-flow");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // "ultrafast", "fast" or "medium"
+    public static int preset(String name) {
+        if (name.equalsIgnoreCase("ultrafast")) {
+            return DISOpticalFlow.PRESET_ULTRAFAST;
+        } else if (name.equalsIgnoreCase("fast")) {
+            return DISOpticalFlow.PRESET_FAST;
+        } else if (name.equalsIgnoreCase("medium")) {
+            return DISOpticalFlow.PRESET_MEDIUM;
+        }
+        throw new IllegalArgumentException("Unknown DIS preset: " + name);
+    }
+
+    /**
+     * Engine described by a preset name optionally followed by comma-separated settings, e.g.
+     * "medium" or "fast,finestScale=1,patchSize=8,refinementIterations=5,initialFlow".
+     */
+    public static Raft parse(String spec) {
+        String[] parts = spec.split(",");
+        int finestScale = PRESET_VALUE;
+        int patchSize = PRESET_VALUE;
+        int refinementIterations = PRESET_VALUE;
+        boolean useInitialFlow = false;
+        for (int i = 1; i < parts.length; i++) {
+            String[] option = parts[i].trim().split("=", 2);
+            if (option[0].equals("initialFlow") && option.length == 1) {
+                useInitialFlow = true;
+            } else if (option[0].equals("finestScale") && option.length == 2) {
+                finestScale = Integer.parseInt(option[1].trim());
+            } else if (option[0].equals("patchSize") && option.length == 2) {
+                patchSize = Integer.parseInt(option[1].trim());
+            } else if (option[0].equals("refinementIterations") && option.length == 2) {
+                refinementIterations = Integer.parseInt(option[1].trim());
+            } else {
+                throw new IllegalArgumentException("Unknown DIS option: " + parts[i]);
+            }
+        }
+        return new Raft(preset(parts[0].trim()), finestScale, patchSize, refinementIterations, useInitialFlow);
+    }
+
+    // The shared ULTRAFAST engine without warm start
+    public static Raft defaultEngine() {
+        return DEFAULT;
+    }
 
     public static List<Mat> calculateRaftOpticalFlow(List<Mat> images) {
-        List<Mat> predictedFlows = new ArrayList<>();
+        return DEFAULT.calculate(images);
+    }
 
-        // Create DIS Optical Flow instance (equivalent to RAFT in OpenCV)
-        DISOpticalFlow disFlow = DISOpticalFlow.create(DISOpticalFlow.PRESET_ULTRAFAST);
+    // Worker factory of the default engine, for callers that run their own threads
+    public static Supplier<ParallelFlowEngine.PairFlow> disWorker() {
+        return DEFAULT.worker();
+    }
 
+    public List<Mat> calculate(List<Mat> images) {
+        List<Integer> pairs = new ArrayList<>();
         for (int i = 0; i < images.size() - 1; i++) {
-            Mat flow = new Mat();
-            disFlow.calc(images.get(i), images.get(i + 1), flow);
-            predictedFlows.add(flow);
+            pairs.add(i);
         }
+        return calculate(images, pairs, 1.0);
+    }
+
+    // Flow for each pair (images[p], images[p + 1]), computed at flowScale (see ParallelFlowEngine.downscaled)
+    public List<Mat> calculate(List<Mat> images, List<Integer> pairs, double flowScale) {
+        // A warm-started pair depends on the pair before it, so keep one fixed order
+        int threads = useInitialFlow ? 1 : numThreads;
+        return new ParallelFlowEngine(threads, executor)
+                .calculate(images, pairs, ParallelFlowEngine.downscaled(workers::get, flowScale));
+    }
 
-        return predictedFlows;
+    public boolean usesInitialFlow() {
+        return useInitialFlow;
+    }
+
+    // Creates a new configured worker per call; workers must not be shared between threads
+    public Supplier<ParallelFlowEngine.PairFlow> worker() {
+        return this::newWorker;
+    }
+
+    public String params() {
+        String[] names = {"ultrafast", "fast", "medium"};
+        String params = "dis preset=" + (preset >= 0 && preset < names.length ? names[preset] : String.valueOf(preset));
+        if (finestScale != PRESET_VALUE) {
+            params += " finestScale=" + finestScale;
+        }
+        if (patchSize != PRESET_VALUE) {
+            params += " patchSize=" + patchSize;
+        }
+        if (refinementIterations != PRESET_VALUE) {
+            params += " refinementIterations=" + refinementIterations;
+        }
+        if (useInitialFlow) {
+            params += " initialFlow";
+        }
+        return params;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private ParallelFlowEngine.PairFlow newWorker() {
+        DISOpticalFlow disFlow = DISOpticalFlow.create(preset);
+        if (finestScale != PRESET_VALUE) {
+            disFlow.setFinestScale(finestScale);
+        }
+        if (patchSize != PRESET_VALUE) {
+            disFlow.setPatchSize(patchSize);
+        }
+        if (refinementIterations != PRESET_VALUE) {
+            disFlow.setVariationalRefinementIterations(refinementIterations);
+        }
+        return new DisWorker(disFlow, useInitialFlow);
+    }
+
+    private static class DisWorker implements ParallelFlowEngine.PairFlow {
+        private final DISOpticalFlow disFlow;
+        private final boolean useInitialFlow;
+        private final Mat lastFlow = new Mat();
+        private Mat lastNextGray;
+
+        DisWorker(DISOpticalFlow disFlow, boolean useInitialFlow) {
+            this.disFlow = disFlow;
+            this.useInitialFlow = useInitialFlow;
+        }
+
+        @Override
+        public void calc(Mat prevGray, Mat nextGray, Mat flow) {
+            // DIS takes a CV_32FC2 flow of the input size as its initial estimate, so pass the
+            // previous pair's flow when this pair continues it, and an empty Mat otherwise
+            if (useInitialFlow && prevGray == lastNextGray && lastFlow.size().equals(prevGray.size())) {
+                lastFlow.copyTo(flow);
+            } else {
+                flow.release();
+            }
+            disFlow.calc(prevGray, nextGray, flow);
+
+            if (useInitialFlow) {
+                flow.copyTo(lastFlow);
+                lastNextGray = nextGray;
+            }
+        }
     }
 }
@@ -0,0 +1,118 @@
+import org.opencv.core.Mat;
+import org.opencv.video.DISOpticalFlow;
+
+import java.util.function.Supplier;
+
+/**
+ * Incremental long exposure for frames that arrive one at a time.
+ *
+ * Each frame is aligned to the first frame, flow is computed only against the previous
+ * frame, and the interpolated frames of that pair are folded into a running mean. Only the
+ * reference, the previous frame and the accumulator are kept, so memory and the latency
+ * of each preview do not depend on the burst length. Pairs arrive strictly in order, so
+ * the DIS engine used by default starts each pair from the previous pair's flow.
+ */
+public class RollingLongExposure {
+
+    private static final int NUM_FRAMES = (1 << 4) - 1;  // 15 intermediate frames
+
+    private static final Raft WARM_START = new Raft(DISOpticalFlow.PRESET_ULTRAFAST, Raft.PRESET_VALUE,
+                                                    Raft.PRESET_VALUE, Raft.PRESET_VALUE, true);
+
+    private final ParallelFlowEngine.PairFlow flow;
+    private final FeatureMatcher.Backend backend;
+    private final ExposureAccumulator accumulator = new ExposureAccumulator();
+    private FlowRemapper remapper;
+
+    private AlignImages.Reference reference;
+    private Mat prevFrame;
+    private Mat prevGray = new Mat();
+    private Mat nextGray = new Mat();
+    private final Mat scratch = new Mat();
+    private int frameCount = 0;
+
+    public RollingLongExposure(Supplier<ParallelFlowEngine.PairFlow> workerFactory) {
+        this(workerFactory, FeatureMatcher.Backend.DEFAULT);
+    }
+
+    // backend selects the features and matcher used for alignment
+    public RollingLongExposure(Supplier<ParallelFlowEngine.PairFlow> workerFactory, FeatureMatcher.Backend backend) {
+        this.flow = workerFactory.get();
+        this.backend = backend;
+    }
+
+    public static RollingLongExposure forMethod(String method) {
+        return forMethod(method, WARM_START);
+    }
+
+    // raft configures the DIS worker of the "raft" method
+    public static RollingLongExposure forMethod(String method, Raft raft) {
+        if (method.equalsIgnoreCase("cv2")) {
+            return new RollingLongExposure(ParallelFlowEngine.farneback());
+        } else if (method.equalsIgnoreCase("raft")) {
+            return new RollingLongExposure(raft.worker());
+        }
+        throw new IllegalArgumentException("Unknown optical flow method: " + method);
+    }
+
+    // Folds the next frame into the exposure and returns the updated preview
+    public Mat addFrame(Mat frame) {
+        Mat aligned;
+        if (reference == null) {
+            // The first frame is the alignment reference and the sharp image
+            reference = new AlignImages.Reference(frame.clone(), backend);
+            aligned = reference.image;
+            remapper = new FlowRemapper(aligned.size());
+            ParallelFlowEngine.toGray(aligned, prevGray);
+            accumulator.add(aligned);
+        } else {
+            aligned = AlignImages.alignImage(reference, frame);
+            ParallelFlowEngine.toGray(aligned, nextGray);
+
+            Mat flowMap = new Mat();
+            flow.calc(prevGray, nextGray, flowMap);
+            ImageProcessor.accumulatePair(prevFrame, aligned, flowMap, NUM_FRAMES, remapper, accumulator, scratch);
+            flowMap.release();
+
+            Mat tmp = prevGray;
+            prevGray = nextGray;
+            nextGray = tmp;
+            if (prevFrame != reference.image) {
+                prevFrame.release();
+            }
+        }
+
+        prevFrame = aligned;
+        frameCount++;
+        return preview();
+    }
+
+    // Current long exposure, in the type of the input frames
+    public Mat preview() {
+        return accumulator.mean();
+    }
+
+    public Mat reference() {
+        return reference == null ? null : reference.image;
+    }
+
+    public int frameCount() {
+        return frameCount;
+    }
+
+    public void release() {
+        if (reference != null) {
+            if (prevFrame != reference.image) {
+                prevFrame.release();
+            }
+            reference.image.release();
+        }
+        if (remapper != null) {
+            remapper.release();
+        }
+        prevGray.release();
+        nextGray.release();
+        scratch.release();
+        accumulator.release();
+    }
+}
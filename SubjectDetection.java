@@ -4,17 +4,24 @@ import org.opencv.objdetect.CascadeClassifier;
 
 public class SubjectDetection {
 
+    // Smallest face and eye sizes searched for, in full resolution pixels
+    private static final double MIN_FACE_SIZE = 30;
+    private static final double MIN_EYE_SIZE = 20;
+
     public static Mat getHeadSegmentation(Mat image) {
-        // Load OpenCV Haar Cascade face detector
-        CascadeClassifier faceCascade = new CascadeClassifier("haarcascade_frontalface_default.xml");
+        Mat gray = toGray(image);
+        Mat headMask = getHeadSegmentationFromGray(gray);
+        releaseGray(gray, image);
+        return headMask;
+    }
 
-        // Convert image to grayscale
-        Mat gray = new Mat();
-        Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGR2GRAY);
+    public static Mat getHeadSegmentationFromGray(Mat gray) {
+        // Cached OpenCV Haar Cascade face detector
+        CascadeClassifier faceCascade = CascadeRegistry.get(CascadeRegistry.FRONTAL_FACE);
 
         // Detect faces
         MatOfRect faces = new MatOfRect();
-        faceCascade.detectMultiScale(gray, faces, 1.1, 5, 0, new Size(30, 30), new Size());
+        faceCascade.detectMultiScale(gray, faces, 1.1, 5, 0, new Size(MIN_FACE_SIZE, MIN_FACE_SIZE), new Size());
 
         // Create a black mask
         Mat headMask = Mat.zeros(gray.size(), CvType.CV_8UC1);
@@ -24,19 +31,22 @@ public class SubjectDetection {
             Imgproc.rectangle(headMask, rect.tl(), rect.br(), new Scalar(255), -1);
         }
 
+        faces.release();
         return headMask;
     }
   public static Mat getAttentionMask(Mat image) {
-    // Load OpenCV Haar Cascade eye detector
-    CascadeClassifier eyeCascade = new CascadeClassifier("haarcascade_eye.xml");
-
-    // Convert image to grayscale
-    Mat gray = new Mat();
-    Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGR2GRAY);
+    Mat gray = toGray(image);
+    Mat attentionMask = getAttentionMaskFromGray(gray);
+    releaseGray(gray, image);
+    return attentionMask;
+}
+  public static Mat getAttentionMaskFromGray(Mat gray) {
+    // Cached OpenCV Haar Cascade eye detector
+    CascadeClassifier eyeCascade = CascadeRegistry.get(CascadeRegistry.EYE);
 
     // Detect eyes
     MatOfRect eyes = new MatOfRect();
-    eyeCascade.detectMultiScale(gray, eyes, 1.1, 10, 0, new Size(20, 20), new Size());
+    eyeCascade.detectMultiScale(gray, eyes, 1.1, 10, 0, new Size(MIN_EYE_SIZE, MIN_EYE_SIZE), new Size());
 
     // Create an empty black mask
     Mat attentionMask = Mat.zeros(gray.size(), CvType.CV_8UC1);
@@ -48,7 +58,114 @@ public class SubjectDetection {
         Imgproc.circle(attentionMask, center, radius, new Scalar(255), -1);
     }
 
+    eyes.release();
     return attentionMask;
+}
+  // Head and attention masks from a single face pass: eyes are only searched inside the detected faces
+  public static Mat[] getHeadAndAttentionMasks(Mat image, double detectionScale) {
+    Mat gray = toGray(image);
+    Rect[] faces = detectFaces(gray, detectionScale);
+
+    CascadeClassifier eyeCascade = CascadeRegistry.get(CascadeRegistry.EYE);
+    Mat headMask = Mat.zeros(gray.size(), CvType.CV_8UC1);
+    Mat attentionMask = Mat.zeros(gray.size(), CvType.CV_8UC1);
+
+    for (Rect face : faces) {
+        if (face.area() == 0) {
+            continue;
+        }
+        Imgproc.rectangle(headMask, face.tl(), face.br(), new Scalar(255), -1);
+
+        // Detect eyes in the face region, at most half the face in size. On faces too small for
+        // that to reach the minimum eye size, the region is upscaled until it does.
+        double eyeMin = Math.max(MIN_EYE_SIZE, eyeCascade.getOriginalWindowSize().width);
+        double regionScale = Math.max(1, 2 * eyeMin / Math.min(face.width, face.height));
+        Mat faceRegion = gray.submat(face);
+        Mat eyeImage = faceRegion;
+        if (regionScale > 1) {
+            eyeImage = new Mat();
+            Imgproc.resize(faceRegion, eyeImage, new Size(), regionScale, regionScale, Imgproc.INTER_LINEAR);
+        }
+        MatOfRect eyes = new MatOfRect();
+        eyeCascade.detectMultiScale(eyeImage, eyes, 1.1, 10, 0, new Size(eyeMin, eyeMin),
+                                    new Size(eyeImage.cols() / 2.0, eyeImage.rows() / 2.0));
+
+        for (Rect rect : eyes.toArray()) {
+            Point center = new Point(face.x + (rect.x + rect.width / 2.0) / regionScale,
+                                     face.y + (rect.y + rect.height / 2.0) / regionScale);
+            int radius = (int) (Math.max(rect.width, rect.height) / 2 / regionScale);
+            Imgproc.circle(attentionMask, center, radius, new Scalar(255), -1);
+        }
+        eyes.release();
+        if (eyeImage != faceRegion) {
+            eyeImage.release();
+        }
+        faceRegion.release();
+    }
+
+    releaseGray(gray, image);
+    return new Mat[]{headMask, attentionMask};
+}
+  // Faces detected on a copy of gray downscaled by effectiveDetectionScale(detectionScale), in
+  // full resolution coordinates.
+  public static Rect[] detectFaces(Mat gray, double detectionScale) {
+    CascadeClassifier faceCascade = CascadeRegistry.get(CascadeRegistry.FRONTAL_FACE);
+    double window = faceCascade.getOriginalWindowSize().width;
+    detectionScale = effectiveDetectionScale(detectionScale);
+
+    Mat detectionImage = gray;
+    if (detectionScale < 1) {
+        detectionImage = new Mat();
+        Imgproc.resize(gray, detectionImage, new Size(), detectionScale, detectionScale, Imgproc.INTER_AREA);
+    }
+
+    MatOfRect faces = new MatOfRect();
+    double minSide = Math.max(window, MIN_FACE_SIZE * detectionScale);
+    faceCascade.detectMultiScale(detectionImage, faces, 1.1, 5, 0, new Size(minSide, minSide), new Size());
+
+    Rect bounds = new Rect(0, 0, gray.cols(), gray.rows());
+    Rect[] detected = faces.toArray();
+    for (int i = 0; i < detected.length; i++) {
+        Rect r = detected[i];
+        Rect scaled = new Rect((int) Math.floor(r.x / detectionScale), (int) Math.floor(r.y / detectionScale),
+                               (int) Math.ceil(r.width / detectionScale), (int) Math.ceil(r.height / detectionScale));
+        detected[i] = intersect(scaled, bounds);
+    }
+
+    faces.release();
+    if (detectionImage != gray) {
+        detectionImage.release();
+    }
+    return detected;
+}
+  // The scale detectFaces actually runs at. The cascade finds nothing smaller than its training
+  // window (24 px), so the downscale is limited to what keeps a MIN_FACE_SIZE face at least that
+  // large: 24 / 30 = 0.8 for the frontal face cascade.
+  public static double effectiveDetectionScale(double detectionScale) {
+    double window = CascadeRegistry.get(CascadeRegistry.FRONTAL_FACE).getOriginalWindowSize().width;
+    return Math.min(1, Math.max(detectionScale, window / MIN_FACE_SIZE));
+}
+  private static Rect intersect(Rect a, Rect b) {
+    int x = Math.max(a.x, b.x);
+    int y = Math.max(a.y, b.y);
+    int right = Math.min(a.x + a.width, b.x + b.width);
+    int bottom = Math.min(a.y + a.height, b.y + b.height);
+    return new Rect(x, y, Math.max(0, right - x), Math.max(0, bottom - y));
+}
+  // Grayscale conversion shared by the head and eye detectors
+  public static Mat toGray(Mat image) {
+    if (image.channels() == 1) {
+        return image;
+    }
+    Mat gray = new Mat();
+    Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGR2GRAY);
+    return gray;
+}
+  // Releases a gray image made by toGray, but not a caller's single-channel input
+  public static void releaseGray(Mat gray, Mat image) {
+    if (gray != image) {
+        gray.release();
+    }
 }
   public static Mat normalize(Mat mask) {
     Mat normalizedMask = new Mat();
@@ -56,5 +173,5 @@ public class SubjectDetection {
     return normalizedMask;
 }
 
-  
+
 }
@@ -0,0 +1,70 @@
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+
+/**
+ * Splits a frame into square tiles whose working set fits a memory budget.
+ *
+ * Each tile is handed out together with a padded rectangle that extends it by a halo on
+ * every side (clipped to the frame). An operation reads from the padded region and writes
+ * only the tile, so as long as the halo covers the operation's footprint the tiled result
+ * is the same as processing the whole frame at once.
+ */
+public class TileExecutor {
+
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+    private static final int MIN_TILE_SIZE = 32;
+
+    public interface TileOp {
+        void apply(Rect tile, Rect padded);
+    }
+
+    private final long memoryBudgetBytes;
+
+    public TileExecutor() {
+        this(DEFAULT_MEMORY_BUDGET);
+    }
+
+    public TileExecutor(long memoryBudgetBytes) {
+        this.memoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    // Tile side such that a padded tile of bytesPerPixel working memory fits the budget. The
+    // halo is what the operation needs to be exact, so a budget too small for a tile of at
+    // least MIN_TILE_SIZE around it is an error rather than silently exceeded.
+    public int tileSize(long bytesPerPixel, int halo) {
+        long pixels = memoryBudgetBytes / Math.max(1, bytesPerPixel);
+        int side = (int) Math.sqrt((double) pixels) - 2 * halo;
+        if (side < MIN_TILE_SIZE) {
+            long paddedSide = MIN_TILE_SIZE + 2L * halo;
+            throw new IllegalArgumentException("Tile memory budget of " + memoryBudgetBytes + " bytes is too small for a halo of "
+                    + halo + " pixels; need at least " + paddedSide * paddedSide * Math.max(1, bytesPerPixel) + " bytes");
+        }
+        return side;
+    }
+
+    public void forEachTile(Size size, long bytesPerPixel, int halo, TileOp op) {
+        int width = (int) size.width;
+        int height = (int) size.height;
+        int tileSize = tileSize(bytesPerPixel, halo);
+
+        for (int y = 0; y < height; y += tileSize) {
+            for (int x = 0; x < width; x += tileSize) {
+                Rect tile = new Rect(x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y));
+
+                int px = Math.max(0, x - halo);
+                int py = Math.max(0, y - halo);
+                int right = Math.min(width, tile.x + tile.width + halo);
+                int bottom = Math.min(height, tile.y + tile.height + halo);
+                Rect padded = new Rect(px, py, right - px, bottom - py);
+
+                op.apply(tile, padded);
+            }
+        }
+    }
+
+    // The part of a result computed over padded that belongs to tile
+    public static Mat inner(Mat paddedResult, Rect tile, Rect padded) {
+        return paddedResult.submat(new Rect(tile.x - padded.x, tile.y - padded.y, tile.width, tile.height));
+    }
+}
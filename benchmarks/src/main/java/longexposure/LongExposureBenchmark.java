@@ -0,0 +1,264 @@
+package longexposure;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for the long-exposure hot paths on synthetic frames.
+ *
+ * Frames are seeded uniform noise, smoothed so that optical flow has texture to lock on to,
+ * and each following frame is the previous one shifted by a few pixels. Nothing is read
+ * from disk apart from the .npy round trip, so the suite runs offline.
+ *
+ * Built by benchmarks/pom.xml, which copies the project classes used here into this package
+ * (JMH rejects benchmarks in the default package). copy.java, Pipeline.java and
+ * Composite.java are drafts that do not compile, so blurImages measures the
+ * ExposureAccumulator and FlowRemapper kernels that ImageProcessor calls, and the composite
+ * benchmarks call FlowMask and Blending, the classes Composite delegates to. From the
+ * repository root:
+ *
+ *   mvn -f benchmarks/pom.xml package
+ *   java -jar benchmarks/target/benchmarks.jar LongExposureBenchmark -prof gc
+ *
+ * Scores are operations per second. The gc profiler reports the Java allocation rate
+ * (gc.alloc.rate.norm is bytes per operation). Mat pixel buffers live in native memory
+ * and do not appear in it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LongExposureBenchmark {
+
+    private static final int NUM_FRAMES = 5;
+    private static final int INTERPOLATED_FRAMES = (1 << 4) - 1;
+    // Ends of the flow mask ramp as fractions of FRef; they do not change the cost
+    private static final double RAMP_ALPHA = 0.25;
+    private static final double RAMP_BETA = 0.75;
+
+    @Param({"640x480", "1280x960", "2048x1536"})
+    public String resolution;
+
+    private List<Mat> images;
+    private List<Mat> flowMaps;
+    private Mat sharpImage;
+    private Mat blurredImage;
+    private Mat blendMask;
+    private Mat poissonMask;
+    private FlowMask flowMask;
+    private FlowRemapper remapper;
+    private File npyFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        nu.pattern.OpenCV.loadLocally();
+        Core.setRNGSeed(0);
+
+        String[] dims = resolution.split("x");
+        Size size = new Size(Integer.parseInt(dims[0]), Integer.parseInt(dims[1]));
+
+        // Textured base frame, then a small camera pan per frame
+        Mat base = new Mat(size, CvType.CV_8UC3);
+        Core.randu(base, 0, 256);
+        Imgproc.GaussianBlur(base, base, new Size(7, 7), 0);
+
+        images = new ArrayList<>();
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            Mat shift = new Mat(2, 3, CvType.CV_64F);
+            shift.put(0, 0, 1, 0, 2 * i, 0, 1, i);
+            Mat frame = new Mat();
+            Imgproc.warpAffine(base, frame, shift, size, Imgproc.INTER_LINEAR, Core.BORDER_REFLECT);
+            images.add(frame);
+            shift.release();
+        }
+        base.release();
+
+        flowMaps = new ArrayList<>();
+        for (int i = 0; i < NUM_FRAMES - 1; i++) {
+            Mat flow = new Mat(size, CvType.CV_32FC2, new Scalar(2, 1));
+            Mat noise = new Mat(size, CvType.CV_32FC2);
+            Core.randn(noise, 0, 0.5);
+            Core.add(flow, noise, flow);
+            noise.release();
+            flowMaps.add(flow);
+        }
+
+        sharpImage = images.get(0);
+        blurredImage = new Mat();
+        Imgproc.GaussianBlur(sharpImage, blurredImage, new Size(31, 31), 0);
+
+        // Soft single-channel CV_32F mask in [0, 1], as the composite passes to the blends
+        blendMask = Mat.zeros(size, CvType.CV_32F);
+        Imgproc.circle(blendMask, new Point(size.width / 2, size.height / 2),
+                       (int) (Math.min(size.width, size.height) / 3), Scalar.all(1), -1);
+        Imgproc.GaussianBlur(blendMask, blendMask, new Size(0, 0), Math.min(size.width, size.height) / 20.0);
+        flowMask = new FlowMask(RAMP_ALPHA, RAMP_BETA);
+
+        // The Poisson solve is dense in the mask area, so keep its region small
+        poissonMask = Mat.zeros(size, CvType.CV_8UC1);
+        Point center = new Point(size.width / 2, size.height / 2);
+        Imgproc.circle(poissonMask, center, (int) (Math.min(size.width, size.height) / 10), Scalar.all(255), -1);
+
+        remapper = new FlowRemapper(size);
+        remapper.setFlow(flowMaps.get(0));
+
+        npyFile = Files.createTempFile("flow", ".npy").toFile();
+        ImageUtils.saveMatAsNpy(npyFile.getAbsolutePath(), flowMaps.get(0));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (Mat image : images) {
+            image.release();
+        }
+        for (Mat flow : flowMaps) {
+            flow.release();
+        }
+        blurredImage.release();
+        blendMask.release();
+        poissonMask.release();
+        remapper.release();
+        npyFile.delete();
+    }
+
+    @Benchmark
+    public Mat loadNpy() {
+        Mat flow = ImageUtils.loadNpyAsMat(npyFile.getAbsolutePath());
+        flow.release();
+        return flow;
+    }
+
+    @Benchmark
+    public void saveNpy() {
+        ImageUtils.saveMatAsNpy(npyFile.getAbsolutePath(), flowMaps.get(0));
+    }
+
+    @Benchmark
+    public void flowDis(Blackhole bh) {
+        releaseAll(Raft.calculateRaftOpticalFlow(images), bh);
+    }
+
+    @Benchmark
+    public void flowFarneback(Blackhole bh) {
+        releaseAll(new ParallelFlowEngine().calculate(images, ParallelFlowEngine.farneback()), bh);
+    }
+
+    // One warp along a fraction of the flow, as done per interpolated frame
+    @Benchmark
+    public Mat generateOneFrame() {
+        Mat frame = new Mat();
+        remapper.warp(sharpImage, 0.5f, frame);
+        frame.release();
+        return frame;
+    }
+
+    // All in-between frames of one pair, as ImageProcessor.interpolateFrames produces them
+    @Benchmark
+    public void interpolateFrames(Blackhole bh) {
+        List<Mat> frames = new ArrayList<>();
+        remapper.setFlow(flowMaps.get(0));
+        for (int t = 1; t < INTERPOLATED_FRAMES; t++) {
+            Mat frame = new Mat();
+            remapper.warp(images.get(0), (float) t / INTERPOLATED_FRAMES, frame);
+            frames.add(frame);
+        }
+        releaseAll(frames, bh);
+    }
+
+    // The accumulation of ImageProcessor.blurImages: every pair's in-between frames into one mean
+    @Benchmark
+    public Mat blurImages() {
+        ExposureAccumulator accumulator = new ExposureAccumulator();
+        Mat scratch = new Mat();
+        accumulator.add(images.get(0));
+        for (int i = 1; i < images.size(); i++) {
+            remapper.setFlow(flowMaps.get(i - 1));
+            for (int t = 1; t < INTERPOLATED_FRAMES; t++) {
+                remapper.warp(images.get(i - 1), (float) t / INTERPOLATED_FRAMES, scratch);
+                accumulator.add(scratch);
+            }
+            accumulator.add(images.get(i));
+        }
+        Mat blurred = accumulator.mean(images.get(0).type());
+        scratch.release();
+        accumulator.release();
+        blurred.release();
+        return blurred;
+    }
+
+    // The F pass of Composite.calcMFlow: per-pixel max flow magnitude over all flow maps
+    @Benchmark
+    public Mat flowMagnitude() {
+        FlowMagnitudeAccumulator magnitudes = new FlowMagnitudeAccumulator();
+        for (Mat flow : flowMaps) {
+            magnitudes.add(flow);
+        }
+        Mat F = magnitudes.F();
+        magnitudes.release();
+        return F;
+    }
+
+    // Composite.calcMFlow: F pass, robust FRef, ramp and bilateral filter
+    @Benchmark
+    public Mat calcMFlow() {
+        Mat MFlow = flowMask.calcMFlow(flowMaps.toArray(new Mat[0]));
+        MFlow.release();
+        return MFlow;
+    }
+
+    @Benchmark
+    public Mat alphaBlending() {
+        Mat blended = Blending.alphaBlending(sharpImage, blendMask, blurredImage);
+        blended.release();
+        return blended;
+    }
+
+    @Benchmark
+    public Mat laplacianPyramidBlend() {
+        Mat blended = Blending.laplacianPyramidBlend(sharpImage, blendMask, blurredImage);
+        blended.release();
+        return blended;
+    }
+
+    @Benchmark
+    public Mat poissonBlend() {
+        Mat blended = Blending.poissonBlend(sharpImage, poissonMask, blurredImage);
+        blended.release();
+        return blended;
+    }
+
+    private static void releaseAll(List<Mat> mats, Blackhole bh) {
+        bh.consume(mats);
+        for (Mat mat : mats) {
+            mat.release();
+        }
+    }
+}
@@ -7,17 +7,25 @@ import java.util.List;
 public class FeatureExtractor {
 
     public static KeypointResult findKeypointsAndFeatures(Mat img) {
+        return findKeypointsAndFeatures(img, FeatureMatcher.Backend.DEFAULT);
+    }
+
+    public static KeypointResult findKeypointsAndFeatures(Mat img, FeatureMatcher.Backend backend) {
         // Convert image to 8-bit and normalize
         Mat image8bit = new Mat();
         Core.normalize(img, image8bit, 0, 255, Core.NORM_MINMAX, CvType.CV_8U);
 
-        // Create SIFT detector
-        SIFT sift = SIFT.create();
+        // This thread's detector for the backend's descriptor type
+        Feature2D detector = backend.detector();
 
         // Detect keypoints and compute descriptors
+        // The inputs are released afterwards, which also keeps them from being finalized mid-call
         MatOfKeyPoint keypoints = new MatOfKeyPoint();
         Mat descriptors = new Mat();
-        sift.detectAndCompute(image8bit, new Mat(), keypoints, descriptors);
+        Mat noMask = new Mat();
+        detector.detectAndCompute(image8bit, noMask, keypoints, descriptors);
+        noMask.release();
+        image8bit.release();
 
         // Convert keypoints to a list of xy coordinates
         List<Point> keypointList = new ArrayList<>();
@@ -25,42 +33,160 @@ public class FeatureExtractor {
             keypointList.add(kp.pt);
         }
 
-        return new KeypointResult(keypointList, descriptors);
+        return new KeypointResult(keypointList, descriptors, backend);
     }
 
     // Helper class to store keypoints and descriptors
     public static class KeypointResult {
         public List<Point> keypoints;
         public Mat descriptors;
+        public FeatureMatcher.Backend backend;
 
-        public KeypointResult(List<Point> keypoints, Mat descriptors) {
+        public KeypointResult(List<Point> keypoints, Mat descriptors, FeatureMatcher.Backend backend) {
             this.keypoints = keypoints;
             this.descriptors = descriptors;
+            this.backend = backend;
         }
     }
 }
 
 import org.opencv.core.*;
 import org.opencv.features2d.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 
 public class FeatureMatcher {
 
+    // FLANN LSH index (algorithm 6) for binary descriptors, in FlannBasedMatcher.write's format
+    private static final String LSH_PARAMS = "%YAML:1.0\n---\n"
+            + "indexParams:\n"
+            + "   - { name: algorithm, type: 9, value: 6 }\n"
+            + "   - { name: table_number, type: 4, value: 6 }\n"
+            + "   - { name: key_size, type: 4, value: 12 }\n"
+            + "   - { name: multi_probe_level, type: 4, value: 1 }\n"
+            + "searchParams:\n"
+            + "   - { name: checks, type: 4, value: 32 }\n"
+            + "   - { name: eps, type: 5, value: 0. }\n"
+            + "   - { name: sorted, type: 8, value: 1 }\n";
+
+    private static String lshParamsFile;
+
+    // Descriptor type and matching strategy, selectable per run
+    public enum Backend {
+        BRUTE_FORCE,  // SIFT descriptors, exhaustive L2 kNN
+        FLANN,        // SIFT descriptors, FLANN randomized KD-tree kNN
+        ORB,          // ORB binary descriptors, FLANN LSH kNN
+        AKAZE;        // AKAZE binary descriptors, FLANN LSH kNN
+
+        public static final Backend DEFAULT = BRUTE_FORCE;
+
+        // One detector per thread, kept alive across calls: a detector that is only referenced by a
+        // local can be finalized by the GC while detectAndCompute is still running on it
+        private final ThreadLocal<Feature2D> detectors = ThreadLocal.withInitial(this::createDetector);
+
+        public Feature2D detector() {
+            return detectors.get();
+        }
+
+        public boolean isBinary() {
+            return this == ORB || this == AKAZE;
+        }
+
+        public Feature2D createDetector() {
+            switch (this) {
+                case ORB:
+                    return org.opencv.features2d.ORB.create(5000);
+                case AKAZE:
+                    return org.opencv.features2d.AKAZE.create();
+                default:
+                    return SIFT.create();
+            }
+        }
+
+        public DescriptorMatcher createMatcher() {
+            switch (this) {
+                case FLANN:
+                    return FlannBasedMatcher.create();
+                case ORB:
+                case AKAZE:
+                    // The default KD-tree index only handles float descriptors
+                    FlannBasedMatcher lsh = FlannBasedMatcher.create();
+                    lsh.read(lshParamsFile());
+                    return lsh;
+                default:
+                    return BFMatcher.create(NormTypes.NORM_L2, false);
+            }
+        }
+    }
+
+    // The Java bindings only take FLANN index parameters through read(), so they are written to a file once
+    private static synchronized String lshParamsFile() {
+        if (lshParamsFile == null) {
+            try {
+                File file = File.createTempFile("flann_lsh", ".yml");
+                file.deleteOnExit();
+                Files.write(file.toPath(), LSH_PARAMS.getBytes(StandardCharsets.US_ASCII));
+                lshParamsFile = file.getAbsolutePath();
+            } catch (IOException e) {
+                throw new RuntimeException("Error writing FLANN LSH parameters", e);
+            }
+        }
+        return lshParamsFile;
+    }
+
     public static CorrespondenceResult findCorrespondences(Mat imgA, Mat imgB) {
-        // Step 1: Extract keypoints and descriptors
-        FeatureExtractor.KeypointResult featuresA = FeatureExtractor.findKeypointsAndFeatures(imgA);
-        FeatureExtractor.KeypointResult featuresB = FeatureExtractor.findKeypointsAndFeatures(imgB);
+        return findCorrespondences(imgA, imgB, Backend.DEFAULT);
+    }
+
+    public static CorrespondenceResult findCorrespondences(Mat imgA, Mat imgB, Backend backend) {
+        return findCorrespondences(FeatureExtractor.findKeypointsAndFeatures(imgA, backend), imgB);
+    }
+
+    public static CorrespondenceResult findCorrespondences(FeatureExtractor.KeypointResult featuresA, Mat imgB) {
+        DescriptorMatcher matcher = trainMatcher(featuresA);
+        CorrespondenceResult result = findCorrespondences(featuresA, matcher, imgB);
+        matcher.clear();
+        return result;
+    }
+
+    /**
+     * The backend's matcher with A's descriptors added and its index built. Build it once per
+     * reference and pass it to every findCorrespondences call: a trained matcher is only read by
+     * knnMatch, so it can be shared between threads, and the FLANN KD-tree or LSH index (which
+     * draws from the process-wide rand()) is the same for every frame matched against it.
+     */
+    public static DescriptorMatcher trainMatcher(FeatureExtractor.KeypointResult featuresA) {
+        DescriptorMatcher matcher = featuresA.backend.createMatcher();
+        if (!featuresA.descriptors.empty()) {
+            List<Mat> descriptors = new ArrayList<>();
+            descriptors.add(featuresA.descriptors);
+            matcher.add(descriptors);
+            matcher.train();
+        }
+        return matcher;
+    }
+
+    // Matches imgB against features of A and the matcher trained on them, both reused across calls
+    public static CorrespondenceResult findCorrespondences(FeatureExtractor.KeypointResult featuresA,
+                                                           DescriptorMatcher matcherA, Mat imgB) {
+        // Step 1: Extract keypoints and descriptors of B with the same backend as A
+        FeatureExtractor.KeypointResult featuresB = FeatureExtractor.findKeypointsAndFeatures(imgB, featuresA.backend);
 
         List<Point> keypointsA = featuresA.keypoints;
         List<Point> keypointsB = featuresB.keypoints;
         Mat descriptorsA = featuresA.descriptors;
         Mat descriptorsB = featuresB.descriptors;
 
-        // Step 2: Match feature descriptors using BFMatcher (L2 Norm)
-        BFMatcher matcher = BFMatcher.create(NormTypes.NORM_L2, false);
+        // Step 2: Match B's descriptors (query) against A's (train) with the trained matcher
         List<MatOfDMatch> knnMatches = new ArrayList<>();
-        matcher.knnMatch(descriptorsA, descriptorsB, knnMatches, 2);
+        if (descriptorsA.empty() || descriptorsB.empty()) {
+            return new CorrespondenceResult(new ArrayList<>(), new ArrayList<>());
+        }
+        matcherA.knnMatch(descriptorsB, knnMatches, 2);
 
         // Step 3: Lowe’s Ratio Test
         double FEATURE_THRESHOLD = 0.2;
@@ -73,8 +199,8 @@ public class FeatureMatcher {
             if (matches.length >= 2) {
                 double ratio = matches[0].distance / matches[1].distance;
                 if (ratio < FEATURE_THRESHOLD) {
-                    pointsA.add(keypointsA.get(matches[0].queryIdx));
-                    pointsB.add(keypointsB.get(matches[0].trainIdx));
+                    pointsA.add(keypointsA.get(matches[0].trainIdx));
+                    pointsB.add(keypointsB.get(matches[0].queryIdx));
                 }
             }
         }
@@ -85,8 +211,11 @@ public class FeatureMatcher {
             pointsB.clear();
             for (MatOfDMatch matchSet : knnMatches.subList(0, Math.min(knnMatches.size(), MIN_NUMBER_MATCHES))) {
                 DMatch[] matches = matchSet.toArray();
-                pointsA.add(keypointsA.get(matches[0].queryIdx));
-                pointsB.add(keypointsB.get(matches[0].trainIdx));
+                if (matches.length == 0) {
+                    continue;
+                }
+                pointsA.add(keypointsA.get(matches[0].trainIdx));
+                pointsB.add(keypointsB.get(matches[0].queryIdx));
             }
         }
 
@@ -196,44 +325,156 @@ public class AlignImages {
     }
 }
 
+import org.opencv.core.CvException;
 import org.opencv.core.Mat;
 import org.opencv.core.Size;
 import org.opencv.core.CvType;
 import org.opencv.core.Point;
 import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.TermCriteria;
+import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.calib3d.Calib3d;
+import org.opencv.video.Video;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 public class AlignImages {
 
+    // Features are matched at 1 / 2^PYRAMID_LEVELS resolution, then refined level by level
+    private static final int PYRAMID_LEVELS = 2;
+    private static final int REFINE_ITERATIONS = 10;
+
+    // Reference frame prepared once and shared by every frame aligned against it
+    public static class Reference {
+        public final Mat image;
+        public final List<Mat> grayPyramid;  // level 0 is full resolution
+        public final FeatureExtractor.KeypointResult coarseFeatures;
+        public final DescriptorMatcher coarseMatcher;  // trained on coarseFeatures
+
+        public Reference(Mat image) {
+            this(image, FeatureMatcher.Backend.DEFAULT);
+        }
+
+        public Reference(Mat image, FeatureMatcher.Backend backend) {
+            this.image = image;
+            this.grayPyramid = buildGrayPyramid(image, PYRAMID_LEVELS);
+            this.coarseFeatures = FeatureExtractor.findKeypointsAndFeatures(grayPyramid.get(PYRAMID_LEVELS), backend);
+            this.coarseMatcher = FeatureMatcher.trainMatcher(coarseFeatures);
+        }
+    }
+
     public static List<Mat> alignImages(List<Mat> images) {
-        List<Mat> alignedImages = new ArrayList<>();
-        Mat rootImg = images.get(0).clone();
-        alignedImages.add(rootImg);
+        return alignImages(images, FeatureMatcher.Backend.DEFAULT);
+    }
 
-        for (int i = 1; i < images.size(); i++) {
-            Mat img = images.get(i);
+    public static List<Mat> alignImages(List<Mat> images, FeatureMatcher.Backend backend) {
+        Mat[] alignedImages = new Mat[images.size()];
+        Reference reference = new Reference(images.get(0).clone(), backend);
+        alignedImages[0] = reference.image;
+
+        // Every frame is matched only against the shared reference, so frames align independently
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            // A frame's result does not depend on which worker aligned it: the reference's matcher
+            // is trained before the workers start and only read by them, and the RANSAC inside
+            // estimateAffinePartial2D seeds its own generator on every call. The FLANN, ORB and
+            // AKAZE indices draw from the process-wide rand() when the reference builds them, so
+            // only BRUTE_FORCE also gives bit-identical alignments from one run to the next.
+            pool.submit(() -> IntStream.range(1, images.size()).parallel().forEach(i ->
+                    alignedImages[i] = alignImage(reference, images.get(i)))).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Image alignment interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error aligning images", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
 
-            // Find correspondences between rootImg and img
-            MatOfPoint2f pointsRoot = new MatOfPoint2f();
-            MatOfPoint2f pointsImg = new MatOfPoint2f();
-            findCorrespondences(rootImg, img, pointsRoot, pointsImg);
+        return new ArrayList<>(Arrays.asList(alignedImages));
+    }
 
-            // Compute transformation matrix (homography or affine)
-            Mat transformMatrix = calculateTransform(pointsImg, pointsRoot, "rigid");
+    // Aligns a single frame to rootImg
+    public static Mat alignImage(Mat rootImg, Mat img) {
+        return alignImage(new Reference(rootImg), img);
+    }
 
-            // Warp image
-            Mat warpedImg = warpImages(img, rootImg, transformMatrix);
-            alignedImages.add(warpedImg);
+    public static Mat alignImage(Reference reference, Mat img) {
+        List<Mat> pyramid = buildGrayPyramid(img, PYRAMID_LEVELS);
+
+        // Estimate the transform on the coarsest level against the reference's cached features and matcher
+        FeatureMatcher.CorrespondenceResult matches = FeatureMatcher.findCorrespondences(
+                reference.coarseFeatures, reference.coarseMatcher, pyramid.get(PYRAMID_LEVELS));
+        MatOfPoint2f pointsRoot = new MatOfPoint2f();
+        MatOfPoint2f pointsImg = new MatOfPoint2f();
+        pointsRoot.fromList(matches.pointsA);
+        pointsImg.fromList(matches.pointsB);
+
+        // Compute transformation matrix (img -> root)
+        Mat transformMatrix = calculateTransform(pointsImg, pointsRoot, "rigid");
+        if (transformMatrix.empty()) {
+            transformMatrix = Mat.eye(2, 3, CvType.CV_64F);
         }
 
-        return alignedImages;
+        // Lift the transform to each finer level and refine it there
+        for (int level = PYRAMID_LEVELS - 1; level >= 0; level--) {
+            transformMatrix.put(0, 2, transformMatrix.get(0, 2)[0] * 2);
+            transformMatrix.put(1, 2, transformMatrix.get(1, 2)[0] * 2);
+            transformMatrix = refineTransform(reference.grayPyramid.get(level), pyramid.get(level), transformMatrix);
+        }
+
+        // Warp image
+        return warpImages(img, reference.image, transformMatrix);
+    }
+
+    // Refines an img -> root affine transform with ECC, starting from the given estimate
+    private static Mat refineTransform(Mat rootGray, Mat imgGray, Mat transformMatrix) {
+        // ECC estimates the warp from root coordinates to img coordinates, i.e. the inverse
+        Mat warp = new Mat();
+        Imgproc.invertAffineTransform(transformMatrix, warp);
+        warp.convertTo(warp, CvType.CV_32F);
+
+        try {
+            Video.findTransformECC(rootGray, imgGray, warp, Video.MOTION_AFFINE,
+                    new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, REFINE_ITERATIONS, 1e-4), new Mat(), 5);
+        } catch (CvException e) {
+            // ECC did not converge on this level: keep the coarser estimate
+            return transformMatrix;
+        }
+
+        Mat refined = new Mat();
+        Imgproc.invertAffineTransform(warp, refined);
+        refined.convertTo(refined, CvType.CV_64F);
+        return refined;
+    }
+
+    private static List<Mat> buildGrayPyramid(Mat img, int levels) {
+        List<Mat> pyramid = new ArrayList<>();
+        Mat gray = new Mat();
+        if (img.channels() == 1) {
+            img.copyTo(gray);
+        } else {
+            Imgproc.cvtColor(img, gray, Imgproc.COLOR_BGR2GRAY);
+        }
+        pyramid.add(gray);
+
+        for (int level = 1; level <= levels; level++) {
+            Mat down = new Mat();
+            Imgproc.pyrDown(pyramid.get(level - 1), down);
+            pyramid.add(down);
+        }
+        return pyramid;
     }
 
     private static void findCorrespondences(Mat img1, Mat img2, MatOfPoint2f points1, MatOfPoint2f points2) {
-        // TODO: Implement feature matching to find correspondences (SIFT, ORB, etc.)
+        FeatureMatcher.CorrespondenceResult matches = FeatureMatcher.findCorrespondences(img1, img2);
+        points1.fromList(matches.pointsA);
+        points2.fromList(matches.pointsB);
     }
 
     private static Mat calculateTransform(MatOfPoint2f srcPoints, MatOfPoint2f dstPoints, String type) {
@@ -295,9 +536,10 @@ public class ImageProcessor {
     }
 }
 
-import org.opencv.core.Mat;
 import org.opencv.core.Core;
-import org.opencv.core.Scalar;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -309,33 +551,106 @@ public class ImageProcessor {
             return new Mat();  // Return empty matrix if no images
         }
 
-        Mat blurredImage = images.get(0).clone();  // Initial image
-        double weight = 1.0;
+        // Every generated frame is folded into a CV_32F running mean and dropped,
+        // so memory stays constant no matter how many in-between frames are generated
+        ExposureAccumulator accumulator = new ExposureAccumulator();
+        accumulator.add(images.get(0));  // Initial image
 
+        // Meshgrid, remap buffers and the frame buffer are shared by every pair and every t
+        FlowRemapper remapper = new FlowRemapper(images.get(0).size());
+        Mat interpolatedFrame = new Mat();
+
+        int NUM_FRAMES = (1 << 4) - 1;  // 15 intermediate frames
         for (int i = 1; i < images.size(); i++) {
-            // Generate in-between frames
-            int NUM_FRAMES = (1 << 4) - 1;  // 15 intermediate frames
-            List<Mat> inbetweenFrames = interpolateFrames(images.get(i - 1), images.get(i), flowMaps.get(i - 1), NUM_FRAMES);
-            inbetweenFrames.add(images.get(i));  // Add next frame
+            accumulatePair(images.get(i - 1), images.get(i), flowMaps.get(i - 1), NUM_FRAMES,
+                           remapper, accumulator, interpolatedFrame);
+        }
 
-            double newWeight = weight + inbetweenFrames.size();
-            Mat sumFrames = Mat.zeros(blurredImage.size(), blurredImage.type());
+        Mat blurredImage = accumulator.mean(images.get(0).type());
 
-            // Sum all intermediate frames
-            for (Mat frame : inbetweenFrames) {
-                Core.add(sumFrames, frame, sumFrames);
-            }
+        interpolatedFrame.release();
+        remapper.release();
+        accumulator.release();
+        return blurredImage;
+    }
 
-            // Weighted blur: (weight * blurredImage + sumFrames) / newWeight
-            Mat weightedBlurredImage = new Mat();
-            Core.addWeighted(blurredImage, weight / newWeight, sumFrames, 1.0 / newWeight, 0, weightedBlurredImage);
+    // Same result as blurImages, computed tile by tile so temporaries stay within the executor's budget
+    public static Mat blurImagesTiled(List<Mat> images, List<Mat> flowMaps, TileExecutor executor) {
+        if (images == null || images.isEmpty()) {
+            return new Mat();  // Return empty matrix if no images
+        }
 
-            blurredImage = weightedBlurredImage;
-            weight = newWeight;
+        Mat first = images.get(0);
+        Mat sum = Mat.zeros(first.size(), CvType.CV_32FC(first.channels()));
+        Imgproc.accumulate(first, sum);  // Initial image
+        long count = 1;
+
+        int NUM_FRAMES = (1 << 4) - 1;  // 15 intermediate frames
+        // Grid, maps and flow channels (6 floats) plus one warped frame per pixel
+        long bytesPerPixel = 6 * 4 + first.elemSize();
+
+        for (int i = 1; i < images.size(); i++) {
+            Mat frame1 = images.get(i - 1);
+            Mat frame2 = images.get(i);
+            Mat flowMap = flowMaps.get(i - 1);
+
+            // The halo must cover the longest flow vector plus the bilinear footprint
+            int halo = (int) Math.ceil(maxFlowMagnitude(flowMap)) + 2;
+
+            executor.forEachTile(first.size(), bytesPerPixel, halo, (tile, padded) -> {
+                FlowRemapper remapper = new FlowRemapper(tile.size(), tile.x - padded.x, tile.y - padded.y);
+                remapper.setFlow(flowMap.submat(tile));
+
+                // Views of the caller's frames and of sum are not the pool's to recycle
+                Mat source = frame1.submat(padded);
+                Mat sumTile = sum.submat(tile);
+                Mat nextTile = frame2.submat(tile);
+                try (MatPool.Arena arena = MatPool.local().arena()) {
+                    Mat warped = arena.mat(tile.height, tile.width, frame1.type());
+                    for (int t = 1; t < NUM_FRAMES; t++) {
+                        remapper.warp(source, (float) t / NUM_FRAMES, warped);
+                        Imgproc.accumulate(warped, sumTile);
+                    }
+                    Imgproc.accumulate(nextTile, sumTile);  // Add next frame
+                } finally {
+                    source.release();
+                    sumTile.release();
+                    nextTile.release();
+                    remapper.release();
+                }
+            });
+            count += NUM_FRAMES;
         }
 
+        Mat blurredImage = new Mat();
+        sum.convertTo(blurredImage, first.type(), 1.0 / count);
+        sum.release();
         return blurredImage;
     }
+
+    private static double maxFlowMagnitude(Mat flowMap) {
+        List<Mat> channels = new ArrayList<>();
+        Core.split(flowMap, channels);
+        Mat magnitude = new Mat();
+        Core.magnitude(channels.get(0), channels.get(1), magnitude);
+        double maxVal = Core.minMaxLoc(magnitude).maxVal;
+        magnitude.release();
+        for (Mat channel : channels) {
+            channel.release();
+        }
+        return maxVal;
+    }
+
+    // Adds the in-between frames of one pair, followed by the next frame itself, to the accumulator
+    public static void accumulatePair(Mat frame1, Mat frame2, Mat flowMap, int numFrames,
+                                      FlowRemapper remapper, ExposureAccumulator accumulator, Mat scratch) {
+        remapper.setFlow(flowMap);
+        for (int t = 1; t < numFrames; t++) {
+            remapper.warp(frame1, (float) t / numFrames, scratch);
+            accumulator.add(scratch);
+        }
+        accumulator.add(frame2);  // Add next frame
+    }
 }
 
 import org.opencv.core.Mat;
@@ -351,40 +666,29 @@ import java.util.List;
 public class ImageProcessor {
 
     public static List<Mat> interpolateFrames(Mat frame1, Mat frame2, Mat inputFlowMap, int numFrames) {
+        FlowRemapper remapper = new FlowRemapper(frame1.size());
+        List<Mat> inBetweenFrames = interpolateFrames(frame1, frame2, inputFlowMap, numFrames, remapper);
+        remapper.release();
+        return inBetweenFrames;
+    }
+
+    public static List<Mat> interpolateFrames(Mat frame1, Mat frame2, Mat inputFlowMap, int numFrames, FlowRemapper remapper) {
         List<Mat> inBetweenFrames = new ArrayList<>();
+        remapper.setFlow(inputFlowMap);
 
         for (int t = 1; t < numFrames; t++) {
             float scaleFactor = (float) t / numFrames;
-            Mat interpolatedFrame = generateOneFrame(frame1, inputFlowMap, scaleFactor);
+            Mat interpolatedFrame = generateOneFrame(frame1, remapper, scaleFactor);
             inBetweenFrames.add(interpolatedFrame);
         }
 
         return inBetweenFrames;
     }
 
-    private static Mat generateOneFrame(Mat frame, Mat flowMap, float t) {
-        int h = frame.rows();
-        int w = frame.cols();
-
-        // Scale the optical flow
-        Mat scaledFlow = new Mat();
-        Core.multiply(flowMap, new Mat(flowMap.size(), flowMap.type(), Scalar.all(t)), scaledFlow);
-
-        // Create mesh grid for pixel locations
-        Mat mapX = new Mat(h, w, CvType.CV_32FC1);
-        Mat mapY = new Mat(h, w, CvType.CV_32FC1);
-
-        for (int i = 0; i < h; i++) {
-            for (int j = 0; j < w; j++) {
-                double[] flow = scaledFlow.get(i, j);
-                mapX.put(i, j, j + flow[0]);
-                mapY.put(i, j, i + flow[1]);
-            }
-        }
-
-        // Warp the frame using remapping
+    private static Mat generateOneFrame(Mat frame, FlowRemapper remapper, float t) {
+        // Warp the frame along the scaled flow using the remapper's reused grid and maps
         Mat interpolatedFrame = new Mat();
-        Imgproc.remap(frame, interpolatedFrame, mapX, mapY, Imgproc.INTER_LINEAR);
+        remapper.warp(frame, t, interpolatedFrame);
 
         return interpolatedFrame;
     }
@@ -394,42 +698,16 @@ import org.opencv.imgcodecs.Imgcodecs;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class ImageProcessor {
 
     public static List<Mat> readImages(String directory, double resizeScale) {
-        List<Mat> images = new ArrayList<>();
-
-        File dir = new File(directory);
-        if (!dir.exists() || !dir.isDirectory()) {
-            return images;
+        // Decoded on a background thread, with the downscale done by the decoder where possible
+        try (FrameSource source = new FrameSource(directory, resizeScale)) {
+            return source.readAll();
         }
-
-        List<String> filenames = new ArrayList<>(Arrays.asList(dir.list()));
-        Collections.sort(filenames);
-
-        for (String filename : filenames) {
-            File file = new File(dir, filename);
-            if (file.isDirectory() || filename.equals("aligned_images") || filename.equals("output") ||
-                filename.equals("flow_map") || filename.equals("output_initial") || filename.equals("output_initial2")) {
-                continue;
-            }
-
-            Mat img = Imgcodecs.imread(file.getAbsolutePath(), Imgcodecs.IMREAD_COLOR);
-            if (img.empty()) {
-                continue;
-            }
-
-            if (resizeScale != 1) {
-                Mat resizedImg = new Mat();
-                Imgproc.resize(img, resizedImg, new Size(img.cols() * resizeScale, img.rows() * resizeScale));
-                img = resizedImg;
-            }
-
-            images.add(img);
-        }
-        return images;
     }
 
     public static void writeImages(String directory, List<Mat> images) {
@@ -447,13 +725,20 @@ public class ImageProcessor {
     }
 
     public static List<Mat> getAlignedImages(List<Mat> images, boolean fromCache, String directory) {
+        return getAlignedImages(images, fromCache, directory, FeatureMatcher.Backend.DEFAULT);
+    }
+
+    public static List<Mat> getAlignedImages(List<Mat> images, boolean fromCache, String directory,
+                                             FeatureMatcher.Backend backend) {
         List<Mat> alignedImages = new ArrayList<>();
 
         // If cached images exist, read them
         if (fromCache && directory != null) {
             File dir = new File(directory);
             if (dir.exists() && dir.isDirectory() && dir.list().length > 0) {
-                for (String filename : dir.list()) {
+                String[] filenames = dir.list();
+                Arrays.sort(filenames);  // img_000.png, img_001.png, ... in frame order
+                for (String filename : filenames) {
                     Mat img = Imgcodecs.imread(new File(dir, filename).getAbsolutePath());
                     if (!img.empty()) {
                         alignedImages.add(img);
@@ -464,7 +749,7 @@ public class ImageProcessor {
         }
 
         // Else, generate aligned images
-        alignedImages = alignImages(images);  // Assuming alignImages() is implemented
+        alignedImages = AlignImages.alignImages(images, backend);
 
         // Save aligned images if a directory is provided
         if (directory != null) {
@@ -473,14 +758,9 @@ public class ImageProcessor {
 
         return alignedImages;
     }
-
-    // Placeholder for alignImages() function
-    private static List<Mat> alignImages(List<Mat> images) {
-        // Implement image alignment logic here
-        return images;  // Return the same images for now
-    }
 }
 
+import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.Size;
 import org.opencv.imgcodecs.Imgcodecs;
@@ -492,8 +772,31 @@ import java.util.List;
 public class ImageProcessor {
 
     public static void pipeline() {
+        pipeline("examples/tiger/");
+    }
+
+    public static void pipeline(String imageDirectory) {
+        boolean TRACE_STAGES = false; // Change as needed
+        long TILE_MEMORY_BUDGET = 0; // Change as needed, in bytes; 0 processes whole frames
+        pipeline(imageDirectory, new PipelineMetrics(TRACE_STAGES),
+                 TILE_MEMORY_BUDGET > 0 ? new TileExecutor(TILE_MEMORY_BUDGET) : null);
+    }
+
+    public static void pipeline(String imageDirectory, PipelineMetrics metrics) {
+        pipeline(imageDirectory, metrics, null);
+    }
+
+    public static void pipeline(String imageDirectory, PipelineMetrics metrics, TileExecutor tiles) {
+        pipeline(imageDirectory, metrics, tiles, FeatureMatcher.Backend.DEFAULT);
+    }
+
+    // With tiles, blur and composite run tile by tile so their temporaries stay within its budget.
+    // All N frames and N-1 flow maps are still held at once, so this path stays at 1/8 scale;
+    // full-resolution bursts go through pipelineConcurrent, which streams them.
+    // backend selects the features and matcher used for alignment.
+    public static void pipeline(String imageDirectory, PipelineMetrics metrics, TileExecutor tiles,
+                                FeatureMatcher.Backend backend) {
         // 0. Prepare directories
-        String imageDirectory = "examples/tiger/";
         String flowmapDirectory = imageDirectory + "flow_map/";
         String alignedImagesDirectory = imageDirectory + "aligned_images/";
         String outputDirectory = imageDirectory + "output/";
@@ -504,7 +807,11 @@ public class ImageProcessor {
 
         // 1.1 Read all images
         System.out.println("Reading Images...");
-        List<Mat> images = readImages(imageDirectory, 1.0 / 8);
+        List<Mat> images;
+        try (PipelineMetrics.Span span = metrics.stage("decode")) {
+            images = readImages(imageDirectory, 1.0 / 8);
+            span.allocated(images.toArray(new Mat[0]));
+        }
         System.out.println("Number of images: " + images.size() + " = N");
         System.out.println("Image shape: " + images.get(0).size() + " = (H, W, 3)");
         System.out.println();
@@ -517,23 +824,35 @@ public class ImageProcessor {
             int W = images.get(0).cols();
             H -= H % 8;
             W -= W % 8;
-            for (int i = 0; i < images.size(); i++) {
-                Mat resizedImg = new Mat();
-                Imgproc.resize(images.get(i), resizedImg, new Size(W, H));
-                images.set(i, resizedImg);
+            try (PipelineMetrics.Span span = metrics.stage("resize")) {
+                for (int i = 0; i < images.size(); i++) {
+                    Mat resizedImg = new Mat();
+                    Imgproc.resize(images.get(i), resizedImg, new Size(W, H));
+                    metrics.release(images.get(i));
+                    span.allocated(resizedImg);
+                    images.set(i, resizedImg);
+                }
             }
         }
 
         // 1.3 Align images using the first frame as reference
         System.out.println("Aligning Images...");
-        images = getAlignedImages(images, false, alignedImagesDirectory);
+        try (PipelineMetrics.Span span = metrics.stage("align")) {
+            List<Mat> alignedImages = getAlignedImages(images, false, alignedImagesDirectory, backend);
+            span.allocated(alignedImages.toArray(new Mat[0]));
+            images = alignedImages;
+        }
         System.out.println("Number of aligned images: " + images.size() + " = N");
         System.out.println("Aligned image shape FIRST: " + images.get(0).size() + " = (H, W, 3)");
         System.out.println("Aligned image shape LAST: " + images.get(images.size() - 1).size() + " = (H, W, 3)");
 
         // 1.4 Naive long exposure
         System.out.println("Naively blurring images...");
-        Mat naiveBlurred = naiveBlurImages(images);
+        Mat naiveBlurred;
+        try (PipelineMetrics.Span span = metrics.stage("naive")) {
+            naiveBlurred = naiveBlurImages(images);
+            span.allocated(naiveBlurred);
+        }
         Imgcodecs.imwrite(outputDirectory + "naive_blurred.png", naiveBlurred);
         System.out.println();
 
@@ -544,10 +863,13 @@ public class ImageProcessor {
 
         boolean USE_USER_MASK = false; // Change as needed
 
-        if (USE_USER_MASK) {
-            subjectMask = getMask(sharpImage);
-        } else {
-            subjectMask = subjectDetection(sharpImage);
+        try (PipelineMetrics.Span span = metrics.stage("subject")) {
+            if (USE_USER_MASK) {
+                subjectMask = getMask(sharpImage);
+            } else {
+                subjectMask = subjectDetection(sharpImage);
+            }
+            span.allocated(subjectMask);
         }
 
         Imgcodecs.imwrite(outputDirectory + "face_mask.png", subjectMask);
@@ -555,7 +877,11 @@ public class ImageProcessor {
 
         // 2. Read/calculate optical flow maps
         System.out.println("Calculating optical flow maps...");
-        List<Mat> flowMaps = calculateOpticalFlow(images, method, false, flowmapDirectory);
+        List<Mat> flowMaps;
+        try (PipelineMetrics.Span span = metrics.stage("flow")) {
+            flowMaps = calculateOpticalFlow(images, method, false, flowmapDirectory);
+            span.allocated(flowMaps.toArray(new Mat[0]));
+        }
         Imgcodecs.imwrite(outputDirectory + "example_flow_map.png", flowMaps.get(0));
         System.out.println("Number of flow maps: " + flowMaps.size() + " = N-1");
         System.out.println("Flow shape: " + flowMaps.get(0).size() + " = (H, W, 2)");
@@ -563,20 +889,151 @@ public class ImageProcessor {
 
         // 4. Interpolate between frames -> one blurred image
         System.out.println("Linearly interpolating between frames...");
-        Mat blurredImage = blurImages(images, flowMaps);
+        Mat blurredImage;
+        try (PipelineMetrics.Span span = metrics.stage("blur")) {
+            blurredImage = tiles != null ? blurImagesTiled(images, flowMaps, tiles) : blurImages(images, flowMaps);
+            span.allocated(blurredImage);
+        }
         Imgcodecs.imwrite(outputDirectory + "blurred_image.png", blurredImage);
         System.out.println();
 
         // 5. Composite
         System.out.println("Compositing...");
-        Mat[] compositeResults = composite(sharpImage, blurredImage, flowMaps, subjectMask);
+        Mat[] compositeResults;
+        try (PipelineMetrics.Span span = metrics.stage("composite")) {
+            compositeResults = tiles != null
+                    ? compositeTiled(sharpImage, blurredImage, flowMaps, subjectMask, tiles)
+                    : composite(sharpImage, blurredImage, flowMaps, subjectMask);
+            span.allocated(compositeResults);
+        }
         Imgcodecs.imwrite(outputDirectory + "result.png", compositeResults[0]);
         Imgcodecs.imwrite(outputDirectory + "flow_face_mask.png", compositeResults[1]);
+
+        writeMetrics(metrics, outputDirectory);
         System.out.println("Finished!");
     }
 
+    // Same outputs as pipeline(), with independent stages running concurrently
+    public static void pipelineConcurrent(String imageDirectory, String method) {
+        try (PipelineExecutor executor = new PipelineExecutor(method)) {
+            pipelineConcurrent(imageDirectory, executor);
+        }
+    }
+
+    public static int pipelineConcurrent(String imageDirectory, PipelineExecutor executor) {
+        return pipelineConcurrent(imageDirectory, executor, new PipelineMetrics());
+    }
+
+    public static int pipelineConcurrent(String imageDirectory, PipelineExecutor executor, PipelineMetrics metrics) {
+        return pipelineConcurrent(imageDirectory, executor, metrics, null);
+    }
+
+    public static int pipelineConcurrent(String imageDirectory, PipelineExecutor executor, PipelineMetrics metrics,
+                                         TileExecutor tiles) {
+        return pipelineConcurrent(imageDirectory, executor, metrics, tiles, 1.0 / 8);
+    }
+
+    // Returns the number of frames processed. Frames are decoded at decodeScale (1 for full
+    // resolution). The executor keeps at most its window of frames and their flows in memory and
+    // blurs pair by pair, and tiles bound the composite stage, so peak memory is that window plus
+    // a handful of full-frame Mats (sharp, blurred, F, masks) however many frames the burst has.
+    public static int pipelineConcurrent(String imageDirectory, PipelineExecutor executor, PipelineMetrics metrics,
+                                         TileExecutor tiles, double decodeScale) {
+        String outputDirectory = imageDirectory + "output/";
+        new File(outputDirectory).mkdirs();
+
+        PipelineExecutor.Result result;
+        try (FrameSource source = new FrameSource(imageDirectory, decodeScale)) {
+            result = executor.run(source, ImageProcessor::subjectDetection, metrics);
+        }
+
+        Imgcodecs.imwrite(outputDirectory + "naive_blurred.png", result.naiveBlurred);
+        Imgcodecs.imwrite(outputDirectory + "face_mask.png", result.subjectMask);
+        Imgcodecs.imwrite(outputDirectory + "example_flow_map.png", result.firstFlowMap);
+        Imgcodecs.imwrite(outputDirectory + "blurred_image.png", result.blurredImage);
+
+        Mat[] compositeResults;
+        try (PipelineMetrics.Span span = metrics.stage("composite")) {
+            // F was accumulated while the flows arrived, so only the mask and the blend are left
+            compositeResults = compositeFromF(result.sharpImage, result.blurredImage, result.flowMagnitude,
+                                              result.subjectMask, tiles);
+            span.allocated(compositeResults);
+        }
+        Imgcodecs.imwrite(outputDirectory + "result.png", compositeResults[0]);
+        Imgcodecs.imwrite(outputDirectory + "flow_face_mask.png", compositeResults[1]);
+
+        writeMetrics(metrics, outputDirectory);
+        return result.numFrames;
+    }
+
+    // composite() with the flow mask and the blend computed tile by tile
+    public static Mat[] compositeTiled(Mat sharpImage, Mat blurredImage, List<Mat> flowMaps, Mat subjectMask,
+                                       TileExecutor tiles) {
+        Mat MFlow = Composite.calcMFlowTiled(flowMaps.toArray(new Mat[0]), sharpImage, tiles);
+        return blendWithFlowMask(sharpImage, blurredImage, MFlow, subjectMask, tiles);
+    }
+
+    // composite() from the per-pixel max flow magnitude F instead of the flow maps; tiles may be null
+    public static Mat[] compositeFromF(Mat sharpImage, Mat blurredImage, Mat flowMagnitude, Mat subjectMask,
+                                       TileExecutor tiles) {
+        Mat MFlow = tiles != null ? Composite.calcMFlowFromFTiled(flowMagnitude, tiles)
+                                  : Composite.calcMFlowFromF(flowMagnitude);
+        return blendWithFlowMask(sharpImage, blurredImage, MFlow, subjectMask, tiles);
+    }
+
+    // Returns {composite, flow face mask}; releases MFlow
+    private static Mat[] blendWithFlowMask(Mat sharpImage, Mat blurredImage, Mat MFlow, Mat subjectMask,
+                                           TileExecutor tiles) {
+        Core.normalize(MFlow, MFlow, 0, 1, Core.NORM_MINMAX);
+
+        // Combine the flow and the subject masks with a max operator
+        Mat flowFaceMask = new Mat();
+        Core.max(MFlow, subjectMask, flowFaceMask);
+        Core.normalize(flowFaceMask, flowFaceMask, 0, 1, Core.NORM_MINMAX);
+        MFlow.release();
+
+        Mat compositeImage = tiles != null ? Blending.alphaBlendingTiled(sharpImage, flowFaceMask, blurredImage, tiles)
+                                           : Blending.alphaBlending(sharpImage, flowFaceMask, blurredImage);
+        return new Mat[]{compositeImage, flowFaceMask};
+    }
+
+    // metrics.json and metrics.prom next to the outputs, plus trace.json when tracing
+    private static void writeMetrics(PipelineMetrics metrics, String outputDirectory) {
+        metrics.writeJson(outputDirectory + "metrics.json");
+        metrics.writePrometheus(outputDirectory + "metrics.prom");
+        if (metrics.isTracing()) {
+            metrics.writeTrace(outputDirectory + "trace.json");
+        }
+    }
+
+    // Streaming variant: frames are decoded, aligned and folded in one at a time,
+    // and the long exposure so far is written after every frame
+    public static void rollingPipeline(String imageDirectory, String outputDirectory, String method) {
+        new File(outputDirectory).mkdirs();
+
+        // Frames are decoded ahead on a background thread while earlier ones are aligned and blurred
+        RollingLongExposure exposure = RollingLongExposure.forMethod(method);
+        try (FrameSource source = new FrameSource(imageDirectory, 1.0 / 8)) {
+            while (source.hasNext()) {
+                Mat img = source.next();
+
+                Mat preview = exposure.addFrame(img);
+                Imgcodecs.imwrite(outputDirectory + "rolling_blurred.png", preview);
+                System.out.println("Frame " + exposure.frameCount() + " added");
+
+                img.release();
+                preview.release();
+            }
+        }
+        exposure.release();
+    }
+
     public static void main(String[] args) {
-        pipeline();
+        if (args.length > 0) {
+            BatchRunner.main(args);
+        } else {
+            pipeline();
+        }
     }
 
     // Placeholder functions to be implemented
@@ -670,43 +1127,38 @@ public class ImageProcessor {
 
 import org.opencv.core.Mat;
 import org.opencv.core.Core;
+import org.opencv.core.Scalar;
 
 public class ImageProcessor {
 
+    // Faces are searched at 0.8x, the smallest scale at which the 24 px cascade window still finds
+    // SubjectDetection's 30 px minimum face (see SubjectDetection.effectiveDetectionScale)
+    private static final double FACE_DETECTION_SCALE = 0.8;
+
     public static Mat subjectDetection(Mat image, boolean faceEnable) {
-        System.out.println("Finding gaze attention mask...");
-        Mat attentionMask = getAttentionMask(image);
-        attentionMask = normalize(attentionMask);
+        // Both detectors run on the same grayscale frame
+        Mat gray = SubjectDetection.toGray(image);
 
         if (!faceEnable) {
+            System.out.println("Finding gaze attention mask...");
+            Mat attentionMask = SubjectDetection.normalize(SubjectDetection.getAttentionMaskFromGray(gray));
+            SubjectDetection.releaseGray(gray, image);
             return attentionMask;
         }
 
-        System.out.println("Finding head mask...");
-        Mat headMask = getHeadSegmentation(image);
-        headMask = normalize(headMask);
+        // Faces are found on a downscaled frame, eyes only inside the faces
+        System.out.println("Finding head and gaze attention masks...");
+        Mat[] masks = SubjectDetection.getHeadAndAttentionMasks(gray, FACE_DETECTION_SCALE);
+        SubjectDetection.releaseGray(gray, image);
+        Mat headMask = SubjectDetection.normalize(masks[0]);
+        Mat attentionMask = SubjectDetection.normalize(masks[1]);
 
         // Combine both masks: face_mask = attention_mask * (1 + head_mask)
         Mat faceMask = new Mat();
         Core.add(headMask, new Mat(headMask.size(), headMask.type(), Scalar.all(1)), headMask); // (1 + head_mask)
         Core.multiply(attentionMask, headMask, faceMask); // attention_mask * (1 + head_mask)
         
-        faceMask = normalize(faceMask);
+        faceMask = SubjectDetection.normalize(faceMask);
         return faceMask;
     }
-
-    private static Mat getAttentionMask(Mat image) {
-        // TODO: Implement attention mask calculation
-        return new Mat(image.size(), image.type()); // Placeholder
-    }
-
-    private static Mat getHeadSegmentation(Mat image) {
-        // TODO: Implement head segmentation logic
-        return new Mat(image.size(), image.type()); // Placeholder
-    }
-
-    private static Mat normalize(Mat image) {
-        // TODO: Implement normalization function
-        return image; // Placeholder
-    }
 }